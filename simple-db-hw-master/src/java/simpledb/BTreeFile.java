@@ -2,6 +2,8 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import simpledb.Predicate.Op;
 
@@ -16,6 +18,15 @@ import simpledb.Predicate.Op;
  * @see simpledb.BTreeInternalPage#BTreeInternalPage
  * @see simpledb.BTreeHeaderPage#BTreeHeaderPage
  * @see simpledb.BTreeRootPtrPage#BTreeRootPtrPage
+ * <p>
+ * Lookups descend the internal pages optimistically, without locking them:
+ * each internal page has a version that is bumped whenever a transaction
+ * fetches it READ_WRITE, and a descent checks, after reading a page and
+ * again after locking the leaf, that no other transaction holds the page for
+ * writing and that its version has not moved. If either check fails the
+ * descent starts again from the root, and after a few failures it falls back
+ * to locking every page on the path. Only the leaf is locked under 2PL.
+ *
  * @author Becca Taft
  */
 public class BTreeFile implements DbFile {
@@ -25,6 +36,18 @@ public class BTreeFile implements DbFile {
 	private final int tableid ;
 	private int keyField;
 
+	/** Optimistic descents tried before falling back to locking the path. */
+	static final int OPTIMISTIC_ATTEMPTS = 3;
+
+	/** versions of the internal pages writers have fetched; absent means 0 */
+	private final ConcurrentHashMap<BTreePageId, AtomicInteger> versions = new ConcurrentHashMap<BTreePageId, AtomicInteger>();
+	/**
+	 * bumped before an internal page's version is dropped, so that a descent
+	 * that read the old version cannot mistake the missing entry for an
+	 * unchanged page
+	 */
+	private final AtomicInteger freedVersions = new AtomicInteger();
+
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
 	 * 
@@ -195,7 +218,124 @@ public class BTreeFile implements DbFile {
 			Field f) 
 					throws DbException, TransactionAbortedException {
 		// some code goes here
-        return null;
+		// snapshots read private copies, which only the locking path hands out
+		if(tid != null && !Database.getBufferPool().isSnapshot(tid)) {
+			for(int i = 0; i < OPTIMISTIC_ATTEMPTS; i++) {
+				BTreeLeafPage leaf = findLeafPageOptimistic(tid, dirtypages, pid, perm, f);
+				if(leaf != null) {
+					return leaf;
+				}
+			}
+		}
+		return findLeafPageLocked(tid, dirtypages, pid, perm, f);
+	}
+
+	/**
+	 * Finds the leaf page like {@link #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)},
+	 * locking the internal pages on the way with READ_ONLY permission.
+	 */
+	private BTreeLeafPage findLeafPageLocked(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid,
+			Permissions perm, Field f) 
+					throws DbException, TransactionAbortedException {
+		if(pid.pgcateg() == BTreePageId.LEAF) {
+			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		}
+		BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		return findLeafPageLocked(tid, dirtypages, childFor(page, f), perm, f);
+	}
+
+	/**
+	 * Finds the leaf page without locking the internal pages, locking only
+	 * the leaf with permission perm.
+	 * 
+	 * @return the leaf page, or null if a page on the path changed while it
+	 * was read, or could not be read consistently, and the descent has to
+	 * start again
+	 */
+	private BTreeLeafPage findLeafPageOptimistic(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid,
+			Permissions perm, Field f) 
+					throws DbException, TransactionAbortedException {
+		BTreePageId parent = null;
+		int parentVersion = 0;
+		int freed = freedVersions.get();
+		while(pid.pgcateg() == BTreePageId.INTERNAL) {
+			int version = versionOf(pid);
+			if(writtenByOther(tid, dirtypages, pid)) {
+				return null;
+			}
+			BTreePageId child;
+			try {
+				BTreeInternalPage page = dirtypages.containsKey(pid) ? (BTreeInternalPage) dirtypages.get(pid)
+						: (BTreeInternalPage) Database.getBufferPool().getPage(null, pid, Permissions.READ_ONLY);
+				child = childFor(page, f);
+			} catch(DbException e) {
+				// a page caught half way through a split or merge can look empty;
+				// start again, and let the locked descent report real errors
+				return null;
+			}
+			if(writtenByOther(tid, dirtypages, pid) || versionOf(pid) != version || freedVersions.get() != freed) {
+				return null;
+			}
+			parent = pid;
+			parentVersion = version;
+			pid = child;
+		}
+
+		boolean held = Database.getBufferPool().holdsLock(tid, pid);
+		BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		// the parent may have been split or merged while we waited for the leaf
+		if(parent != null && (writtenByOther(tid, dirtypages, parent) || versionOf(parent) != parentVersion
+				|| freedVersions.get() != freed)) {
+			if(!held) {
+				dirtypages.remove(pid);
+				Database.getBufferPool().releasePage(tid, pid);
+			}
+			return null;
+		}
+		return leaf;
+	}
+
+	/**
+	 * Returns the child of an internal page whose subtree holds the left-most
+	 * entry possibly equal to f, or the left-most child if f is null.
+	 */
+	private BTreePageId childFor(BTreeInternalPage page, Field f) throws DbException {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while(it.hasNext()) {
+			e = it.next();
+			if(f == null || f.compare(Op.LESS_THAN_OR_EQ, e.getKey())) {
+				return e.getLeftChild();
+			}
+		}
+		if(e == null) {
+			throw new DbException("internal page " + page.getId().getPageNumber() + " has no entries");
+		}
+		return e.getRightChild();
+	}
+
+	private int versionOf(BTreePageId pid) {
+		AtomicInteger version = versions.get(pid);
+		return version == null ? 0 : version.get();
+	}
+
+	/**
+	 * Forgets the version of a page that is no longer an internal page of
+	 * the tree, so that versions only holds entries for live internal pages.
+	 */
+	private void dropVersion(int pgNo) {
+		BTreePageId pid = new BTreePageId(tableid, pgNo, BTreePageId.INTERNAL);
+		if(versions.containsKey(pid)) {
+			freedVersions.incrementAndGet();
+			versions.remove(pid);
+		}
+	}
+
+	/**
+	 * Returns true if a transaction other than tid may be changing pid.
+	 */
+	private boolean writtenByOther(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid) {
+		return !dirtypages.containsKey(pid) && TransactionLock.getTransactionLock().isWriteLockedByOther(pid, tid);
 	}
 	
 	/**
@@ -247,8 +387,41 @@ public class BTreeFile implements DbFile {
 		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
 		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
 		// tuple with the given key field should be inserted.
-        return null;
-		
+		BTreeLeafPage newPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+
+		// move the upper half of the tuples to the new page
+		ArrayList<Tuple> moving = new ArrayList<Tuple>();
+		Iterator<Tuple> it = page.reverseIterator();
+		int n = page.getNumTuples() / 2;
+		while(moving.size() < n && it.hasNext()) {
+			moving.add(it.next());
+		}
+		for(Tuple t : moving) {
+			page.deleteTuple(t);
+			newPage.insertTuple(t);
+		}
+
+		// link the new page into the leaf chain before the parent learns of it
+		BTreePageId rightId = page.getRightSiblingId();
+		if(rightId != null) {
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			right.setLeftSiblingId(newPage.getId());
+		}
+		newPage.setRightSiblingId(rightId);
+		newPage.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(newPage.getId());
+
+		// copy the first key of the new page up into the parent
+		Field mid = newPage.iterator().next().getField(keyField);
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), mid);
+		parent.insertEntry(new BTreeEntry(mid, page.getId(), newPage.getId()));
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		if(field != null && field.compare(Op.GREATER_THAN, mid)) {
+			return newPage;
+		}
+		return page;
 	}
 	
 	/**
@@ -285,7 +458,35 @@ public class BTreeFile implements DbFile {
 		// the parent pointers of all the children moving to the new page.  updateParentPointers()
 		// will be useful here.  Return the page into which an entry with the given key field
 		// should be inserted.
-		return null;
+		BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+
+		// move the upper half of the entries to the new page, highest first so
+		// that each one shares a child with the entries already moved
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		int n = page.getNumEntries() / 2;
+		for(int i = 0; i < n && it.hasNext(); i++) {
+			BTreeEntry e = it.next();
+			page.deleteKeyAndRightChild(e);
+			newPage.insertEntry(e);
+		}
+
+		// the next entry is pushed up to the parent
+		BTreeEntry mid = it.next();
+		page.deleteKeyAndRightChild(mid);
+		mid.setLeftChild(page.getId());
+		mid.setRightChild(newPage.getId());
+
+		updateParentPointers(tid, dirtypages, newPage);
+
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), mid.getKey());
+		parent.insertEntry(mid);
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		if(field != null && field.compare(Op.GREATER_THAN, mid.getKey())) {
+			return newPage;
+		}
+		return page;
 	}
 	
 	/**
@@ -418,6 +619,15 @@ public class BTreeFile implements DbFile {
 			Page p = Database.getBufferPool().getPage(tid, pid, perm);
 			if(perm == Permissions.READ_WRITE) {
 				dirtypages.put(pid, p);
+				// optimistic readers of this page must start again
+				if(pid.pgcateg() == BTreePageId.INTERNAL) {
+					AtomicInteger version = versions.get(pid);
+					if(version == null) {
+						versions.putIfAbsent(pid, new AtomicInteger());
+						version = versions.get(pid);
+					}
+					version.incrementAndGet();
+				}
 			}
 			return p;
 		}
@@ -1041,6 +1251,7 @@ public class BTreeFile implements DbFile {
 		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
 		int emptySlot = emptyPageNo - headerPageCount * BTreeHeaderPage.getNumSlots();
 		headerPage.markSlotUsed(emptySlot, false);
+		dropVersion(emptyPageNo);
 	}
 
 	/**
@@ -1099,10 +1310,24 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
 		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		curp = moveTo(f.findLeafPage(tid, root, Permissions.READ_ONLY, null).getId());
 		it = curp.iterator();
 	}
 
+	/**
+	 * Pin the given leaf, then unpin the one the iterator was reading
+	 */
+	private BTreeLeafPage moveTo(BTreePageId pid) throws TransactionAbortedException, DbException {
+		BTreeLeafPage next = (BTreeLeafPage) Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+		unpin();
+		return next;
+	}
+
+	private void unpin() {
+		if (curp != null)
+			Database.getBufferPool().unpinPage(tid, curp.getId());
+	}
+
 	/**
 	 * Read the next tuple either from the current page if it has more tuples or
 	 * from the next page by following the right sibling pointer.
@@ -1117,11 +1342,11 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		while (it == null && curp != null) {
 			BTreePageId nextp = curp.getRightSiblingId();
 			if(nextp == null) {
+				unpin();
 				curp = null;
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+				curp = moveTo(nextp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1146,6 +1371,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
+		unpin();
 		it = null;
 		curp = null;
 	}
@@ -1184,16 +1410,32 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
 		BTreePageId root = rootPtr.getRootId();
+		BTreeLeafPage leaf;
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			leaf = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			leaf = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
 		}
+		curp = moveTo(leaf.getId());
 		it = curp.iterator();
 	}
 
+	/**
+	 * Pin the given leaf, then unpin the one the iterator was reading
+	 */
+	private BTreeLeafPage moveTo(BTreePageId pid) throws TransactionAbortedException, DbException {
+		BTreeLeafPage next = (BTreeLeafPage) Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+		unpin();
+		return next;
+	}
+
+	private void unpin() {
+		if (curp != null)
+			Database.getBufferPool().unpinPage(tid, curp.getId());
+	}
+
 	/**
 	 * Read the next tuple either from the current page if it has more tuples matching
 	 * the predicate or from the next page by following the right sibling pointer.
@@ -1229,8 +1471,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 				return null;
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+				curp = moveTo(nextp);
 				it = curp.iterator();
 			}
 		}
@@ -1251,6 +1492,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
+		unpin();
 		it = null;
+		curp = null;
 	}
 }
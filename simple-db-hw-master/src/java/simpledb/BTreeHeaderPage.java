@@ -67,7 +67,7 @@ public class BTreeHeaderPage implements Page {
 	/**
 	 * Initially mark all slots in the header used.
 	 */
-	public void init() {
+	public synchronized void init() {
 		for (int i=0; i<header.length; i++)
 			header[i] = (byte) 0xFF;
 	}
@@ -131,7 +131,7 @@ public class BTreeHeaderPage implements Page {
 	 * @see #BTreeHeaderPage
 	 * @return A byte array correspond to the bytes of this page.
 	 */
-	public byte[] getPageData() {
+	public synchronized byte[] getPageData() {
 		int len = BufferPool.getPageSize();
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
@@ -210,7 +210,7 @@ public class BTreeHeaderPage implements Page {
 	 * @param id - the page id of the previous header page
 	 * @throws DbException
 	 */
-	public void setPrevPageId(BTreePageId id) throws DbException {
+	public synchronized void setPrevPageId(BTreePageId id) throws DbException {
 		if(id == null) {
 			prevPage = 0;
 		}
@@ -230,7 +230,7 @@ public class BTreeHeaderPage implements Page {
 	 * @param id - the page id of the next header page
 	 * @throws DbException
 	 */
-	public void setNextPageId(BTreePageId id) throws DbException {
+	public synchronized void setNextPageId(BTreePageId id) throws DbException {
 		if(id == null) {
 			nextPage = 0;
 		}
@@ -249,7 +249,7 @@ public class BTreeHeaderPage implements Page {
 	 * Marks this page as dirty/not dirty and record that transaction
 	 * that did the dirtying
 	 */
-	public void markDirty(boolean dirty, TransactionId tid) {
+	public synchronized void markDirty(boolean dirty, TransactionId tid) {
 		this.dirty = dirty;
 		if (dirty) this.dirtier = tid;
 	}
@@ -257,7 +257,7 @@ public class BTreeHeaderPage implements Page {
 	/**
 	 * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
 	 */
-	public TransactionId isDirty() {
+	public synchronized TransactionId isDirty() {
 		if (this.dirty)
 			return this.dirtier;
 		else
@@ -276,7 +276,7 @@ public class BTreeHeaderPage implements Page {
 	/**
 	 * Abstraction to mark a page of the BTreeFile used or unused
 	 */
-	public void markSlotUsed(int i, boolean value) {
+	public synchronized void markSlotUsed(int i, boolean value) {
 		int headerbit = i % 8;
 		int headerbyte = (i - headerbit) / 8;
 
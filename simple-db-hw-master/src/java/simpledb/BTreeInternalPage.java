@@ -231,7 +231,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * @see #BTreeInternalPage
 	 * @return A byte array correspond to the bytes of this page.
 	 */
-	public byte[] getPageData() {
+	public synchronized byte[] getPageData() {
 		int len = BufferPool.getPageSize();
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
@@ -376,7 +376,7 @@ public class BTreeInternalPage extends BTreePage {
 	 *         already empty.
 	 * @param e The entry to delete
 	 */
-	public void deleteKeyAndRightChild(BTreeEntry e) throws DbException {
+	public synchronized void deleteKeyAndRightChild(BTreeEntry e) throws DbException {
 		deleteEntry(e, true);
 	}
 	
@@ -389,7 +389,7 @@ public class BTreeInternalPage extends BTreePage {
 	 *         already empty.
 	 * @param e The entry to delete
 	 */
-	public void deleteKeyAndLeftChild(BTreeEntry e) throws DbException {
+	public synchronized void deleteKeyAndLeftChild(BTreeEntry e) throws DbException {
 		deleteEntry(e, false);
 	}
 	
@@ -401,7 +401,7 @@ public class BTreeInternalPage extends BTreePage {
 	 *         already empty, or updating this key would put the entry out of 
 	 *         order on the page
 	 */
-	public void updateEntry(BTreeEntry e) throws DbException {
+	public synchronized void updateEntry(BTreeEntry e) throws DbException {
 		RecordId rid = e.getRecordId();
 		if(rid == null)
 			throw new DbException("tried to update entry with null rid");
@@ -440,7 +440,7 @@ public class BTreeInternalPage extends BTreePage {
 	 *         table id, or child page category is a mismatch, or the entry is invalid
 	 * @param e The entry to add.
 	 */
-	public void insertEntry(BTreeEntry e) throws DbException {
+	public synchronized void insertEntry(BTreeEntry e) throws DbException {
 		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
 			throw new DbException("key field type mismatch, in insertEntry");
 
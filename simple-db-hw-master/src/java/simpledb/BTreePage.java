@@ -91,7 +91,7 @@ public abstract class BTreePage implements Page {
 	 * @param id - the id of the parent of this page
 	 * @throws DbException if the id is not valid
 	 */
-	public void setParentId(BTreePageId id) throws DbException {
+	public synchronized void setParentId(BTreePageId id) throws DbException {
 		if(id == null) {
 			throw new DbException("parent id must not be null");
 		}
@@ -113,7 +113,7 @@ public abstract class BTreePage implements Page {
 	 * Marks this page as dirty/not dirty and record that transaction
 	 * that did the dirtying
 	 */
-	public void markDirty(boolean dirty, TransactionId tid) {
+	public synchronized void markDirty(boolean dirty, TransactionId tid) {
 		this.dirty = dirty;
 		if (dirty) this.dirtier = tid;
 	}
@@ -121,7 +121,7 @@ public abstract class BTreePage implements Page {
 	/**
 	 * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
 	 */
-	public TransactionId isDirty() {
+	public synchronized TransactionId isDirty() {
 		if (this.dirty)
 			return this.dirtier;
 		else
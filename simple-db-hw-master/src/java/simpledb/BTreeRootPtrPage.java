@@ -77,7 +77,7 @@ public class BTreeRootPtrPage implements Page {
 	 *
 	 * @return A byte array corresponding to the bytes of this root pointer page.
 	 */
-	public byte[] getPageData(){
+	public synchronized byte[] getPageData(){
 		int len = PAGE_SIZE;
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
@@ -126,12 +126,12 @@ public class BTreeRootPtrPage implements Page {
 		return new byte[len]; //all 0
 	}
 
-	public void markDirty(boolean dirty, TransactionId tid){
+	public synchronized void markDirty(boolean dirty, TransactionId tid){
 		this.dirty = dirty;
 		if (dirty) this.dirtier = tid;
 	}
 
-	public TransactionId isDirty() {
+	public synchronized TransactionId isDirty() {
 		if (this.dirty)
 			return this.dirtier;
 		else
@@ -167,7 +167,7 @@ public class BTreeRootPtrPage implements Page {
 	 * @param id - the id of the root page
 	 * @throws DbException if the id is invalid
 	 */
-	public void setRootId(BTreePageId id) throws DbException {
+	public synchronized void setRootId(BTreePageId id) throws DbException {
 		if(id == null) {
 			root = 0;
 		}
@@ -199,7 +199,7 @@ public class BTreeRootPtrPage implements Page {
 	 * @param id - the id of the first header page
 	 * @throws DbException if the id is invalid
 	 */
-	public void setHeaderId(BTreePageId id) throws DbException {
+	public synchronized void setHeaderId(BTreePageId id) throws DbException {
 		if(id == null) {
 			header = 0;
 		}
@@ -0,0 +1,79 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+
+/**
+ * BufferAccessStrategy tells {@link BufferPool#getPage(TransactionId, PageId, Permissions, BufferAccessStrategy)}
+ * how a caller intends to use the pages it asks for, so that one large scan
+ * does not push the working set of every other transaction out of the pool.
+ * <ul>
+ * <li>{@link #NORMAL}: pages are cached like any other page.
+ * <li>{@link #COLD}: pages read from disk enter the replacement policy at its
+ * cold end and are the first candidates for eviction.
+ * <li>{@link #newRing(int)}: like COLD, and in addition the strategy remembers
+ * the pages it caused to be read. Once it has read more than its ring size,
+ * the oldest of them is dropped from the pool (if still clean), so the scan
+ * never occupies more than ring size frames.
+ * </ul>
+ * NORMAL and COLD are stateless and may be shared; a ring belongs to one scan.
+ */
+public class BufferAccessStrategy {
+
+    /** Ring size used by DbFile iterators for scans of files bigger than the pool. */
+    public static final int DEFAULT_RING_SIZE = 16;
+
+    public static final BufferAccessStrategy NORMAL = new BufferAccessStrategy(false, 0);
+    public static final BufferAccessStrategy COLD = new BufferAccessStrategy(true, 0);
+
+    private final boolean cold;
+    private final int ringSize;
+    private final ArrayDeque<PageId> ring;
+
+    private BufferAccessStrategy(boolean cold, int ringSize) {
+        this.cold = cold;
+        this.ringSize = ringSize;
+        this.ring = ringSize > 0 ? new ArrayDeque<PageId>(ringSize + 1) : null;
+    }
+
+    /**
+     * Creates a strategy that keeps at most ringSize of the pages it reads in
+     * the pool.
+     *
+     * @param ringSize the number of frames the scan may occupy; at least 1
+     */
+    public static BufferAccessStrategy newRing(int ringSize) {
+        if (ringSize < 1)
+            throw new IllegalArgumentException("ring size must be at least 1");
+        return new BufferAccessStrategy(true, ringSize);
+    }
+
+    /**
+     * @return true if pages read under this strategy should enter the
+     *         replacement policy at its cold end
+     */
+    public boolean isCold() {
+        return cold;
+    }
+
+    /**
+     * @return the number of frames a ring may occupy, or 0 if this strategy
+     *         has no ring
+     */
+    public int getRingSize() {
+        return ringSize;
+    }
+
+    /**
+     * Records that the pool just read pid from disk on behalf of this
+     * strategy.
+     *
+     * @return the page that fell out of the ring and should be dropped from
+     *         the pool if it is clean, or null
+     */
+    synchronized PageId pageRead(PageId pid) {
+        if (ring == null)
+            return null;
+        ring.addLast(pid);
+        return ring.size() > ringSize ? ring.pollFirst() : null;
+    }
+}
@@ -2,9 +2,16 @@ package simpledb;
 
 import java.io.*;
 
+import java.lang.ref.SoftReference;
+
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -17,6 +24,57 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * The pool is split into shards by PageId hash. Each shard has its own frame
+ * table, replacement policy and monitor, so hits never take a lock. A miss
+ * only holds its shard's monitor to claim a frame and to publish the page, not
+ * while reading it, so misses load in parallel even within a shard, and a
+ * second request for a page being read waits for that read instead of
+ * repeating it. A shard evicts only its own pages once
+ * it holds its share of numPages. The pool can be grown or shrunk while it is
+ * in use with {@link #resize(int)}.
+ * <p>
+ * In off-heap mode each shard also owns a {@link PageArena}. Clean heap pages
+ * are kept there as raw bytes; only pages that are dirty or were fetched
+ * READ_WRITE by a running transaction are held decoded on the Java heap. The
+ * last page decoded from a frame is kept behind a soft reference, so repeated
+ * READ_ONLY hits share it without taking the shard's monitor, and the
+ * collector can still reclaim it when memory runs short. A page that finds
+ * its shard's arena full stays on the heap.
+ * <p>
+ * Each shard sets aside a protected segment, by default
+ * {@link #DEFAULT_PROTECTED_FRACTION} of its frames, for the root pointer,
+ * header and internal pages of B+ trees; see {@link PriorityReplacementPolicy}.
+ * Pages there are only evicted once nothing else can be, so index probes keep
+ * finding the upper levels cached while scans churn through the rest.
+ * <p>
+ * Optionally, a {@link ReadAhead} loads pages ahead of sequential scans in
+ * the background; see {@link #setReadAheadWindow(int)}.
+ * <p>
+ * Optionally, clean heap pages the pool evicts are kept deflated in a
+ * {@link CompressedPageCache}, which is checked before going to disk; see
+ * {@link #setCompressedCacheSize(long)}.
+ * <p>
+ * A page fetched with {@link #pinPage} is never evicted until it has been
+ * unpinned as many times as it was pinned; DbFile iterators pin the page they
+ * are reading. Pins belong to a transaction and any left over are dropped when
+ * it completes. Pin counts are updated with compare-and-set, and eviction
+ * claims an unpinned frame the same way, so pinned hits stay off the shard's
+ * monitor like any other hit.
+ * <p>
+ * Dirty pages may be written before their transaction commits (STEAL), either
+ * by a {@link DirtyPageWriter} or when a shard has no clean page left to
+ * evict. Such writes go through {@link #writeBack(PageId)}, which latches the
+ * page against its owner's changes, forces an UPDATE record to the log first
+ * and keeps the page's before-image until the transaction ends, so that an
+ * abort can put the old page back on disk.
+ * To respect the log's locking order, writeBack takes the LogFile monitor
+ * before the shard's and is never called with a shard monitor held.
+ * <p>
+ * A transaction registered with {@link #beginSnapshot} is read-only and takes
+ * no locks: it reads every page as of the last commit before it began, from
+ * the page's before-image or from the {@link VersionStore}, which keeps the
+ * images commits replace while snapshots are open.
  *
  * @Threadsafe, all fields are final
  */
@@ -32,42 +90,405 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
-    private int numPages;
-    private Map<PageId,BufferPage> buffermap;
+    /** Smallest number of frames worth giving a shard of its own; smaller
+    pools use fewer shards so that skew between shards stays negligible. */
+    public static final int MIN_PAGES_PER_SHARD = 1024;
+
+    /** A reasonable window to pass to {@link #setReadAheadWindow(int)};
+    read-ahead is off until it is called. */
+    public static final int DEFAULT_READ_AHEAD_PAGES = 8;
+
+    /** Share of each shard reserved for B+ tree upper levels unless changed with
+    {@link #setProtectedFraction(double)}. */
+    public static final double DEFAULT_PROTECTED_FRACTION = 0.1;
+
+    private volatile int numPages;
+    private volatile double protectedFraction = DEFAULT_PROTECTED_FRACTION;
+    /** serializes calls to resize */
+    private final Object resizeLock = new Object();
+    private final Shard[] shards;
+    private final boolean offHeap;
+    private volatile ReadAhead readAhead;
+    private volatile CompressedPageCache compressedCache;
+    private DirtyPageWriter dirtyPageWriter;
+    /** before-images of pages written ahead of commit, by transaction */
+    private final Map<TransactionId, Map<PageId, Page>> stolenPages = new ConcurrentHashMap<>();
+    /** pages each running transaction has locked and may have dirtied */
+    private final Map<TransactionId, TransactionPages> transactionPages = new ConcurrentHashMap<>();
+    private final BufferPoolStats stats = new BufferPoolStats();
+    private final VersionStore versions = new VersionStore();
 
 
     private class BufferPage{
 //        ReentrantReadWriteLock lock=new ReentrantReadWriteLock();
 //        TransactionLock lock=TransactionLock.getTransactionLock();
-        Page page;
+        // null while the page only lives in the shard's arena
+        volatile Page page;
+        int frame = -1;
 //        TransactionId transactionId;
         Permissions permissions;
-        int numberOfUsed;//用来换页
-
-        public int getNumberOfUsed() {
-            return numberOfUsed;
-        }
-
-        public void setNumberOfUsed(int numberOfUsed) {
-            this.numberOfUsed = numberOfUsed;
-        }
+        /**
+         * number of outstanding pins, or -1 once the frame has been claimed
+         * for removal; changed with CAS, so pinning needs no monitor
+         */
+        final AtomicInteger pins = new AtomicInteger();
+        /** true while the page is being read in; guarded by the shard's monitor */
+        boolean loading;
+        /** while the page only lives in the arena, the copy last decoded from it */
+        volatile SoftReference<Page> decoded;
 
         public BufferPage(Page page, TransactionId transactionId, Permissions permissions) {
             this.page = page;
 //            this.transactionId = transactionId;
             this.permissions = permissions;
         }
+
+        boolean isDirty() {
+            Page p = page;
+            return p != null && p.isDirty() != null;
+        }
+
+        /**
+         * Takes a pin without the shard's monitor.
+         *
+         * @return false if the frame has been claimed for removal
+         */
+        boolean tryPin() {
+            while (true) {
+                int n = pins.get();
+                if (n < 0)
+                    return false;
+                if (pins.compareAndSet(n, n + 1))
+                    return true;
+            }
+        }
+
+        void unpin(int count) {
+            while (true) {
+                int n = pins.get();
+                if (n <= 0 || pins.compareAndSet(n, Math.max(0, n - count)))
+                    return;
+            }
+        }
+
+        /**
+         * Claims an unpinned frame for removal, after which it can no longer
+         * be pinned. The caller must hold the shard's monitor.
+         *
+         * @return false if the frame is pinned
+         */
+        boolean claim() {
+            return pins.compareAndSet(0, -1);
+        }
+
+        /** @return the page, from the arena's decoded copy if need be, or null */
+        Page cachedPage() {
+            Page p = page;
+            if (p != null)
+                return p;
+            SoftReference<Page> ref = decoded;
+            return ref == null ? null : ref.get();
+        }
+    }
+
+    /**
+     * The pages one transaction has used, so that commit and abort only visit
+     * those instead of the whole pool. Every page the transaction may have
+     * dirtied is also in locked.
+     */
+    private static class TransactionPages{
+        final Set<PageId> locked = ConcurrentHashMap.newKeySet();
+        final Set<PageId> written = ConcurrentHashMap.newKeySet();
+        /** pins not yet released, guarded by this */
+        final Map<PageId, Integer> pins = new HashMap<PageId, Integer>();
+    }
+
+    /** The bytes of an evicted page, waiting to be compressed. */
+    private static class Evicted{
+        final byte[] data;
+        /** set by the thread compressing it; guarded by the shard */
+        boolean taken;
+
+        Evicted(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    /**
+     * One partition of the pool. Lookups read buffermap without locking;
+     * anything that adds, removes or evicts pages synchronizes on the shard.
+     * capacity and arena only change under the shard's monitor.
+     * <p>
+     * A page being read from disk is represented by a loading placeholder,
+     * which takes a frame but holds no page; the read itself happens outside
+     * the monitor. Threads that need the page, or need a frame while every
+     * frame is taken by reads in progress, wait on the shard and are woken
+     * when a read finishes.
+     */
+    private class Shard{
+        int capacity;
+        /** reads in progress */
+        int loads;
+        final Map<PageId,BufferPage> buffermap;
+        final PriorityReplacementPolicy replacementPolicy;
+        PageArena arena;
+        /**
+         * clean heap pages evicted for the compressed cache but not yet
+         * compressed into it; changed only under the monitor. Loading or
+         * discarding a page drops its entry, so an image that may no longer
+         * match the disk never reaches the cache.
+         */
+        final Map<PageId,Evicted> evicted = new ConcurrentHashMap<>();
+
+        Shard(int capacity, ReplacementPolicy.Factory policies, boolean offHeap) {
+            this.capacity = capacity;
+            this.buffermap = new ConcurrentHashMap<>(capacity);
+            this.replacementPolicy = new PriorityReplacementPolicy(policies.create(), policies.create(),
+                    PriorityReplacementPolicy.BTREE_UPPER_LEVELS, protectedShare(capacity));
+            this.arena = offHeap ? new PageArena(capacity, getPageSize()) : null;
+        }
     }
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, evicting with
+     * the CLOCK policy.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, ClockReplacementPolicy.FACTORY);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, using one shard
+     * per {@link #MIN_PAGES_PER_SHARD} pages up to the number of processors.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policies creates the replacement policies of each shard's general
+     *        and protected segments
+     */
+    public BufferPool(int numPages, ReplacementPolicy.Factory policies) {
+        this(numPages, defaultShards(numPages), policies);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages split over
+     * numShards shards, each evicting with its own policy from the factory.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numShards number of independently locked partitions
+     * @param policies creates the replacement policies of each shard's general
+     *        and protected segments
+     */
+    public BufferPool(int numPages, int numShards, ReplacementPolicy.Factory policies) {
+        this(numPages, numShards, policies, false);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages split over
+     * numShards shards, optionally keeping clean heap pages off-heap.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numShards number of independently locked partitions
+     * @param policies creates the replacement policies of each shard's general
+     *        and protected segments
+     * @param offHeap if true, preallocate numPages frames of direct memory and
+     *        keep clean HeapPages there as raw bytes
+     */
+    public BufferPool(int numPages, int numShards, ReplacementPolicy.Factory policies, boolean offHeap) {
         // some code goes here
+        if (numShards < 1 || numShards > numPages)
+            throw new IllegalArgumentException("numShards must be between 1 and numPages");
         this.numPages=numPages;
-        this.buffermap=new ConcurrentHashMap<>(numPages);
+        this.offHeap=offHeap;
+        this.shards=new Shard[numShards];
+        for (int i = 0; i < numShards; i++)
+            shards[i] = new Shard(shareOf(numPages, i), policies, offHeap);
+    }
+
+    /**
+     * Sets how many pages are loaded in the background ahead of a sequential
+     * scan. Read-ahead is off until this is called.
+     *
+     * @param pages the read-ahead window; 0 turns read-ahead off
+     */
+    public void setReadAheadWindow(int pages) {
+        this.readAhead = pages > 0 ? new ReadAhead(this, pages) : null;
+    }
+
+    /**
+     * Turns on a second-tier cache that keeps evicted clean heap pages in
+     * compressed form, or turns it off. Changing the size drops what the
+     * old cache held.
+     *
+     * @param bytes the most compressed bytes to keep; 0 turns the cache off
+     */
+    public void setCompressedCacheSize(long bytes) {
+        this.compressedCache = bytes > 0 ? new CompressedPageCache(bytes) : null;
+    }
+
+    /**
+     * Starts a background thread that writes dirty pages back according to
+     * the given policy, replacing any writer already running.
+     */
+    public synchronized void startDirtyPageWriter(DirtyPageWriter.FlushPolicy policy) {
+        stopDirtyPageWriter();
+        dirtyPageWriter = new DirtyPageWriter(this, policy);
+        dirtyPageWriter.start();
+    }
+
+    /** Stops the background dirty page writer, if one is running. */
+    public synchronized void stopDirtyPageWriter() {
+        if (dirtyPageWriter != null) {
+            dirtyPageWriter.shutdown();
+            dirtyPageWriter = null;
+        }
+    }
+
+    /**
+     * @return the maximum number of pages this pool caches
+     */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /** @return how many of numPages pages shard i holds */
+    private int shareOf(int numPages, int i) {
+        // spread the remainder over the first shards
+        return numPages / shards.length + (i < numPages % shards.length ? 1 : 0);
+    }
+
+    private int protectedShare(int capacity) {
+        return (int) (capacity * protectedFraction);
+    }
+
+    /**
+     * Sets the share of each shard reserved for the root pointer, header and
+     * internal pages of B+ trees. Pages that no longer fit are moved to the
+     * general segment, not evicted.
+     *
+     * @param fraction between 0 (no protected segment) and 1
+     */
+    public void setProtectedFraction(double fraction) {
+        if (fraction < 0 || fraction > 1)
+            throw new IllegalArgumentException("fraction must be between 0 and 1");
+        synchronized (resizeLock) {
+            protectedFraction = fraction;
+            for (Shard shard : shards) {
+                synchronized (shard) {
+                    shard.replacementPolicy.setProtectedCapacity(protectedShare(shard.capacity));
+                }
+            }
+        }
+    }
+
+    /**
+     * Changes the number of pages the pool caches without dropping what it
+     * holds. Growing takes effect at once. Shrinking evicts clean pages from
+     * each shard until it fits its new share, writing dirty pages back first
+     * (as in {@link #writeBack(PageId)}) if a shard has nothing clean left.
+     * Transactions keep running meanwhile; the shard being shrunk only stalls
+     * its misses while it evicts.
+     * <p>
+     * In off-heap mode each shard's arena is reallocated at the new size and
+     * the pages in it are copied over.
+     *
+     * @param numPages the new maximum number of pages; at least the number of
+     *        shards
+     * @throws DbException if a page could not be written back while shrinking;
+     *         every shard is then back at its old share
+     */
+    public void resize(int numPages) throws DbException {
+        if (numPages < shards.length)
+            throw new IllegalArgumentException("a pool with " + shards.length
+                    + " shards needs at least " + shards.length + " pages");
+        synchronized (resizeLock) {
+            int resized = 0;
+            boolean done = false;
+            try {
+                for (; resized < shards.length; resized++)
+                    resizeShard(shards[resized], shareOf(numPages, resized));
+                this.numPages = numPages;
+                done = true;
+            } finally {
+                if (!done) {
+                    // the failed shard holds no more than its old share, nor do
+                    // those before it, so growing them back cannot fail
+                    for (int i = 0; i <= resized && i < shards.length; i++)
+                        resizeShard(shards[i], shareOf(this.numPages, i));
+                }
+            }
+        }
+    }
+
+    private void resizeShard(Shard shard, int capacity) throws DbException {
+        try {
+            while (true) {
+                synchronized (shard) {
+                    shard.capacity = capacity;
+                    shard.replacementPolicy.setProtectedCapacity(protectedShare(capacity));
+                    while (shard.buffermap.size() > capacity && evictPage(shard))
+                        ;
+                    if (shard.buffermap.size() <= capacity) {
+                        if (offHeap && shard.arena.capacity() != capacity)
+                            shard.arena = copyArena(shard, capacity);
+                        return;
+                    }
+                }
+                // only dirty pages are left over the new capacity
+                stealPage(shard);
+            }
+        } finally {
+            compressEvicted(shard);
+        }
+    }
+
+    /**
+     * Moves the pages in a shard's arena into a new arena with the given
+     * number of frames. The caller must hold the shard's monitor.
+     */
+    private PageArena copyArena(Shard shard, int frames) {
+        PageArena arena=new PageArena(frames, getPageSize());
+        for (BufferPage bufferPage : shard.buffermap.values()) {
+            if (bufferPage.frame < 0)
+                continue;
+            int frame=arena.allocate();
+            arena.write(frame, shard.arena.read(bufferPage.frame));
+            bufferPage.frame=frame;
+        }
+        return arena;
+    }
+
+    /**
+     * Adds up the pool's counters and measures how many frames are in use
+     * and dirty. Cheap enough to poll, but not free: it visits every frame.
+     *
+     * @return the pool's statistics as of now
+     */
+    public BufferPoolStats.Snapshot getStats() {
+        int cached=0;
+        int dirty=0;
+        int pinned=0;
+        for (Shard shard : shards) {
+            for (BufferPage bufferPage : shard.buffermap.values()) {
+                cached++;
+                if (bufferPage.isDirty())
+                    dirty++;
+                if (bufferPage.pins.get() > 0)
+                    pinned++;
+            }
+        }
+        return stats.snapshot(numPages, cached, dirty, pinned);
+    }
+
+    private static int defaultShards(int numPages) {
+        int byProcessors = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(byProcessors, numPages / MIN_PAGES_PER_SHARD));
+    }
+
+    private Shard shardFor(PageId pid) {
+        int h = pid.hashCode();
+        return shards[Math.floorMod(h ^ (h >>> 16), shards.length)];
     }
 
     public static int getPageSize() {
@@ -101,24 +522,451 @@ public class BufferPool {
      */
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, BufferAccessStrategy.NORMAL);
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage(TransactionId, PageId, Permissions)},
+     * placing it in the pool according to the caller's access strategy.
+     * Sequential scans over large files should pass a ring so that they do
+     * not evict the rest of the pool.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param strategy how the page should be cached if it has to be read
+     */
+    public  Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferAccessStrategy strategy)
+        throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, strategy, false);
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage(TransactionId, PageId, Permissions)}
+     * and pin it, so that it stays in the pool until {@link #unpinPage} is
+     * called for it or tid completes.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, BufferAccessStrategy.NORMAL, true);
+    }
+
+    /**
+     * Retrieve and pin the specified page like {@link #pinPage(TransactionId, PageId, Permissions)},
+     * placing it in the pool according to the caller's access strategy.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param strategy how the page should be cached if it has to be read
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm, BufferAccessStrategy strategy)
+        throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, strategy, true);
+    }
+
+    /**
+     * Releases one pin that tid took on pid with {@link #pinPage}. Once every
+     * pin is released the page can be evicted again.
+     *
+     * @param tid the transaction that pinned the page
+     * @param pid the page to unpin
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+        if (tid != null && versions.snapshotOf(tid) != null)
+            return;
+        TransactionPages pages=tid==null ? null : transactionPages.get(tid);
+        if (pages != null) {
+            synchronized (pages) {
+                Integer n=pages.pins.get(pid);
+                if (n == null)
+                    return;
+                if (n == 1)
+                    pages.pins.remove(pid);
+                else
+                    pages.pins.put(pid, n - 1);
+            }
+        }
+        unpin(pid, 1);
+    }
+
+    private void unpin(PageId pid, int count) {
+        BufferPage bufferPage=shardFor(pid).buffermap.get(pid);
+        if (bufferPage != null)
+            bufferPage.unpin(count);
+    }
+
+    /**
+     * Drops the pins a finishing transaction never released.
+     */
+    private void releasePins(TransactionPages pages) {
+        synchronized (pages) {
+            for (Map.Entry<PageId, Integer> entry : pages.pins.entrySet())
+                unpin(entry.getKey(), entry.getValue());
+            pages.pins.clear();
+        }
+    }
+
+    private Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferAccessStrategy strategy,
+            boolean pin) throws TransactionAbortedException, DbException {
         // some code goes here
+        Long snapshot=tid==null ? null : versions.snapshotOf(tid);
+        if (snapshot != null) {
+            if (perm == Permissions.READ_WRITE)
+                throw new DbException("transaction " + tid.getId() + " is a read-only snapshot");
+            return snapshotPage(snapshot, pid, strategy);
+        }
         TransactionLock.getTransactionLock().getLock(pid,tid,perm);//一开始读之前就要对pid上锁
-        if (!buffermap.containsKey(pid) && buffermap.size()>=numPages){
-            evictPage();
+        pageLocked(tid, pid, perm);
+        Shard shard=shardFor(pid);
+        BufferPage bufferPage=shard.buffermap.get(pid);
+        Page page=null;
+        if (bufferPage != null)
+            page=perm == Permissions.READ_ONLY ? bufferPage.cachedPage() : bufferPage.page;
+        PageId recycled=null;
+        boolean hit=page != null;
+        if (hit && pin) {
+            // the frame may have been evicted or replaced before the pin landed
+            hit=bufferPage.tryPin();
+            if (hit && shard.buffermap.get(pid) != bufferPage) {
+                bufferPage.unpin(1);
+                hit=false;
+            }
         }
-        if (!buffermap.containsKey(pid)) {
-            Catalog catalog=Database.getCatalog();
-            HeapFile heapFile=(HeapFile)(catalog.getDatabaseFile(pid.getTableId()));
-            Page page=heapFile.readPage(pid);
-            BufferPage bufferPage=new BufferPage(page,tid,perm);
-            buffermap.put(pid,bufferPage);
+        if (hit) {
+            stats.hit(pid);
+            // a scan running cold must not promote the pages it passes over
+            if (!strategy.isCold())
+                shard.replacementPolicy.pageAccessed(pid);
+        } else {
+            page=null;
+            while (page == null) {
+                BufferPage placeholder=null;
+                synchronized (shard) {
+                    // another transaction may have loaded it while we waited
+                    bufferPage=shard.buffermap.get(pid);
+                    if (bufferPage != null && bufferPage.loading) {
+                        // somebody else is reading it; wait rather than read it twice
+                        awaitLoad(shard);
+                        continue;
+                    }
+                    if (bufferPage != null) {
+                        stats.hit(pid);
+                        if (!strategy.isCold())
+                            shard.replacementPolicy.pageAccessed(pid);
+                        if (pin)
+                            bufferPage.pins.incrementAndGet();
+                        page=bufferPage.page;
+                        if (page == null) {
+                            page=decode(shard, pid, bufferPage);
+                            if (perm == Permissions.READ_WRITE) {
+                                // writers must all see the same object until it is flushed
+                                shard.arena.release(bufferPage.frame);
+                                bufferPage.frame=-1;
+                                bufferPage.decoded=null;
+                                bufferPage.page=page;
+                            }
+                        }
+                    } else if (shard.buffermap.size()<shard.capacity || evictPage(shard)) {
+                        placeholder=startLoad(shard, pid, tid, perm);
+                        if (pin)
+                            placeholder.pins.incrementAndGet();
+                    } else if (shard.loads > 0) {
+                        // the frames are taken by reads in progress, which may free up once they finish
+                        awaitLoad(shard);
+                        continue;
+                    }
+                }
+                if (placeholder != null) {
+                    page=load(shard, pid, placeholder, strategy, false);
+                    if (page != null)
+                        recycled=strategy.pageRead(pid);
+                } else if (page == null) {
+                    // every page in the shard is dirty: write one back outside the monitor and retry
+                    stealPage(shard);
+                }
+                compressEvicted(shard);
+            }
         }
+        if (pin)
+            pinned(tid, pid);
+
+        if (recycled != null)
+            discardIfClean(recycled);
+        ReadAhead ra=readAhead;
+        if (ra != null)
+            ra.pageRequested(page);
 
         //同一个事务对同一个页既可以获取写锁，也可以获取读锁，即写读不互斥，所以ReentrantReadWriteLock（读读不互斥、读写互斥、写写互斥）用不了
-        BufferPage bufferPage=buffermap.get(pid);
 //        bufferPage.lock.getLock(pid,tid,perm);
-        System.out.println(bufferPage.page);
-        return bufferPage.page;
+        return page;
+    }
+
+    /**
+     * Returns a private copy of a page as a snapshot sees it. The copy is
+     * never cached or locked, so a snapshot's pins are no-ops.
+     */
+    private Page snapshotPage(long snapshot, PageId pid, BufferAccessStrategy strategy)
+            throws TransactionAbortedException, DbException {
+        // the committed image has to be read before the version chain; see VersionStore#read
+        Page committed=null;
+        for (Map<PageId, Page> stolen : stolenPages.values()) {
+            committed=stolen.get(pid);
+            if (committed != null)
+                break;
+        }
+        if (committed == null)
+            committed=getPage(null, pid, Permissions.READ_ONLY, strategy, false).getBeforeImage();
+        Page older=versions.read(snapshot, pid);
+        return older != null ? older : committed;
+    }
+
+    /**
+     * Starts a read-only snapshot for tid, which from now on reads the
+     * database as of the last commit without taking any locks. tid must not
+     * have read or written anything yet; the snapshot ends when tid
+     * completes.
+     *
+     * @param tid the transaction
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versions.begin(tid);
+    }
+
+    /**
+     * @return true if tid is a read-only snapshot started with {@link #beginSnapshot}
+     */
+    public boolean isSnapshot(TransactionId tid) {
+        return tid != null && versions.snapshotOf(tid) != null;
+    }
+
+    /**
+     * Records that tid holds a lock on pid.
+     */
+    private void pageLocked(TransactionId tid, PageId pid, Permissions perm) {
+        if (tid == null)
+            return;
+        TransactionPages pages=pagesOf(tid);
+        pages.locked.add(pid);
+        if (perm == Permissions.READ_WRITE)
+            pages.written.add(pid);
+    }
+
+    /**
+     * Records that tid took a pin on pid.
+     */
+    private void pinned(TransactionId tid, PageId pid) {
+        if (tid == null)
+            return;
+        TransactionPages pages=pagesOf(tid);
+        synchronized (pages) {
+            Integer n=pages.pins.get(pid);
+            pages.pins.put(pid, n == null ? 1 : n + 1);
+        }
+    }
+
+    private TransactionPages pagesOf(TransactionId tid) {
+        TransactionPages pages=transactionPages.get(tid);
+        if (pages == null) {
+            transactionPages.putIfAbsent(tid, new TransactionPages());
+            pages=transactionPages.get(tid);
+        }
+        return pages;
+    }
+
+    /**
+     * Reads a page that is not in the pool, from the compressed cache if it
+     * has the page and from the page's file otherwise.
+     */
+    private Page readPage(PageId pid) {
+        CompressedPageCache cache=compressedCache;
+        if (cache != null && pid instanceof HeapPageId) {
+            byte[] data=cache.take(pid, getPageSize());
+            if (data != null) {
+                try {
+                    Page page=new HeapPage((HeapPageId) pid, data);
+                    stats.secondTierHit();
+                    return page;
+                } catch (IOException e) {
+                    // fall back to the copy on disk
+                }
+            }
+        }
+        return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+    }
+
+    /**
+     * Puts a loading placeholder for pid in a shard that has a free frame
+     * for it. The caller must hold the shard's monitor and then call
+     * {@link #load} without it.
+     */
+    private BufferPage startLoad(Shard shard, PageId pid, TransactionId tid, Permissions perm) {
+        shard.evicted.remove(pid);
+        BufferPage placeholder=new BufferPage(null,tid,perm);
+        placeholder.loading=true;
+        shard.buffermap.put(pid,placeholder);
+        shard.loads++;
+        return placeholder;
+    }
+
+    /**
+     * Reads the page a placeholder stands for without holding the shard's
+     * monitor, then publishes it in the placeholder's place and wakes the
+     * threads waiting for it. A placeholder dropped while the page was being
+     * read, for example by {@link #discardPage}, is not published, since the
+     * read may predate whatever dropped it.
+     *
+     * @param prefetch true if the read is for {@link ReadAhead}
+     * @return the page, or null if the placeholder was dropped and the caller
+     *         should look the page up again
+     */
+    private Page load(Shard shard, PageId pid, BufferPage placeholder, BufferAccessStrategy strategy,
+            boolean prefetch) {
+        Page page=null;
+        try {
+            long readStart=System.nanoTime();
+            page=readPage(pid);
+            if (prefetch)
+                stats.prefetched(System.nanoTime()-readStart);
+            else
+                stats.miss(pid, System.nanoTime()-readStart);
+        } finally {
+            synchronized (shard) {
+                shard.loads--;
+                placeholder.loading=false;
+                if (shard.buffermap.get(pid) != placeholder) {
+                    page=null;
+                } else if (page == null) {
+                    // the read failed; let the next request try again
+                    shard.buffermap.remove(pid);
+                } else {
+                    placeholder.page=page;
+                    if (strategy.isCold())
+                        shard.replacementPolicy.pageAddedCold(pid);
+                    else
+                        shard.replacementPolicy.pageAdded(pid);
+                    if (placeholder.permissions == Permissions.READ_ONLY)
+                        demote(shard, placeholder);
+                }
+                shard.notifyAll();
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Waits until a read in progress in the shard finishes. The caller must
+     * hold the shard's monitor.
+     */
+    private void awaitLoad(Shard shard) throws TransactionAbortedException {
+        try {
+            shard.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransactionAbortedException();
+        }
+    }
+
+    /**
+     * Returns the decoded copy of a page that only lives in the shard's
+     * arena, decoding it again if the collector has cleared the last one.
+     * The caller must hold the shard's monitor.
+     */
+    private Page decode(Shard shard, PageId pid, BufferPage bufferPage) throws DbException {
+        Page page=bufferPage.cachedPage();
+        if (page != null)
+            return page;
+        try {
+            page=new HeapPage((HeapPageId) pid, shard.arena.read(bufferPage.frame));
+        } catch (IOException e) {
+            throw new DbException("unable to decode page " + pid.getPageNumber() + " from the page arena");
+        }
+        bufferPage.decoded=new SoftReference<Page>(page);
+        return page;
+    }
+
+    /**
+     * In off-heap mode, moves a clean, decoded HeapPage into the shard's
+     * arena, keeping the decoded copy only behind a soft reference. Other
+     * page types, and pages that find the arena full, stay on the heap.
+     * The caller must hold the shard's monitor.
+     */
+    private void demote(Shard shard, BufferPage bufferPage) {
+        Page page=bufferPage.page;
+        if (!offHeap || !(page instanceof HeapPage) || page.isDirty()!=null)
+            return;
+        int frame=shard.arena.allocate();
+        if (frame < 0)
+            return;
+        shard.arena.write(frame, (HeapPage) page);
+        bufferPage.frame=frame;
+        bufferPage.decoded=new SoftReference<Page>(page);
+        bufferPage.page=null;
+    }
+
+    /**
+     * Loads a page into the pool on behalf of {@link ReadAhead}, without
+     * taking any lock for a transaction. Gives up quietly if the page cannot
+     * be read or no frame can be freed for it.
+     *
+     * @return the cached page, or null if it could not be loaded
+     */
+    Page prefetchPage(PageId pid) {
+        Shard shard=shardFor(pid);
+        BufferPage placeholder;
+        try {
+            synchronized (shard) {
+                BufferPage bufferPage=shard.buffermap.get(pid);
+                if (bufferPage != null) {
+                    if (bufferPage.loading)
+                        return null;
+                    return bufferPage.page != null ? bufferPage.page : decode(shard, pid, bufferPage);
+                }
+                if (shard.buffermap.size()>=shard.capacity && !evictPage(shard))
+                    return null;
+                placeholder=startLoad(shard, pid, null, Permissions.READ_ONLY);
+            }
+            Page page=load(shard, pid, placeholder, BufferAccessStrategy.COLD, true);
+            compressEvicted(shard);
+            return page;
+        } catch (DbException e) {
+            return null;
+        } catch (RuntimeException e) {
+            // e.g. the file shrank or its table was removed
+            return null;
+        }
+    }
+
+    /**
+     * Drops a page that fell out of a scan's ring, unless it has been dirtied
+     * since it was read.
+     */
+    private void discardIfClean(PageId pid) {
+        Shard shard=shardFor(pid);
+        synchronized (shard) {
+            BufferPage bufferPage=shard.buffermap.get(pid);
+            if (bufferPage!=null && !bufferPage.loading && !bufferPage.isDirty() && bufferPage.claim())
+                removePage(shard,pid);
+        }
+    }
+
+    /**
+     * Removes a page from its shard and gives back its arena frame, if any.
+     * The caller must hold the shard's monitor.
+     */
+    private void removePage(Shard shard, PageId pid) {
+        BufferPage bufferPage=shard.buffermap.remove(pid);
+        if (bufferPage==null)
+            return;
+        // late lock-free pins must fail rather than land on a frame no longer in the pool
+        bufferPage.pins.set(-1);
+        if (bufferPage.frame>=0)
+            shard.arena.release(bufferPage.frame);
+        shard.replacementPolicy.pageRemoved(pid);
     }
 
     /**
@@ -134,6 +982,10 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1|lab2
         TransactionLock.getTransactionLock().releasePage(tid,pid);
+        TransactionPages pages=tid==null ? null : transactionPages.get(tid);
+        // a page tid may have dirtied stays indexed so that commit still flushes it
+        if (pages != null && !pages.written.contains(pid))
+            pages.locked.remove(pid);
     }
 
     /**
@@ -146,7 +998,11 @@ public class BufferPool {
         // not necessary for lab1|lab2
         //刷新脏页到磁盘、释放锁
         flushPages(tid);
-        System.out.println("transaction commited");
+        stolenPages.remove(tid);
+        TransactionPages pages=transactionPages.remove(tid);
+        if (pages != null)
+            releasePins(pages);
+        versions.end(tid);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
@@ -156,6 +1012,19 @@ public class BufferPool {
         return TransactionLock.getTransactionLock().holdsLock(tid,p);
     }
 
+    /**
+     * Locks a whole table for tid, so that its pages can then be read (or,
+     * with READ_WRITE, written) without taking a lock per page.
+     *
+     * @param tid the transaction that wants the lock
+     * @param tableId the table to lock
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive one
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+        throws TransactionAbortedException {
+        TransactionLock.getTransactionLock().getTableLock(tableId, tid, perm);
+    }
+
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
@@ -170,13 +1039,39 @@ public class BufferPool {
         if(commit)transactionComplete(tid);
         else{
             //中止，页面恢复到磁盘状态、释放锁
-            for (Map.Entry<PageId, BufferPage> group : buffermap.entrySet()) {
-                Page page = group.getValue().page;
-                if (tid.equals(page.isDirty())) {
-                    discardPage(group.getKey());
+            versions.end(tid);
+            TransactionPages pages = transactionPages.remove(tid);
+            if (pages != null)
+                releasePins(pages);
+            // pages written ahead of commit must get their old contents back on disk
+            Map<PageId, Page> stolen = stolenPages.remove(tid);
+            if (stolen != null) {
+                writePages(stolen.values());
+                for (PageId pid : stolen.keySet())
+                    discardPage(pid);
+            }
+            if (pages == null) {
+                TransactionLock.getTransactionLock().releaseAll(tid);
+                return;
+            }
+            for (PageId pid : pages.written) {
+                Shard shard = shardFor(pid);
+                BufferPage bufferPage = shard.buffermap.get(pid);
+                Page page = bufferPage == null ? null : bufferPage.page;
+                if (page != null && tid.equals(page.isDirty()))
+                    discardPage(pid);
+            }
+            if (offHeap) {
+                for (PageId pid : pages.locked) {
+                    Shard shard = shardFor(pid);
+                    synchronized (shard) {
+                        BufferPage bufferPage = shard.buffermap.get(pid);
+                        if (bufferPage != null)
+                            demote(shard, bufferPage);
+                    }
                 }
-                this.releasePage(tid, page.getId());//不管页脏没脏 都要释放该页上的锁
             }
+            TransactionLock.getTransactionLock().releaseAll(tid);//不管页脏没脏 都要释放该页上的锁
         }
     }
 
@@ -204,12 +1099,36 @@ public class BufferPool {
         ArrayList<Page> pages=heapFile.insertTuple(tid,t);
         for(int i=0;i<pages.size();i++){
             PageId pid=pages.get(i).getId();
-            BufferPage bufferPage=new BufferPage(pages.get(0),tid,Permissions.READ_ONLY);
-            bufferPage.setNumberOfUsed(bufferPage.getNumberOfUsed()+1);
-            if(buffermap.get(pid)==null && buffermap.size()>=numPages){
-                evictPage();
+            pages.get(i).markDirty(true,tid);
+            pageLocked(tid,pid,Permissions.READ_WRITE);
+            CompressedPageCache cache=compressedCache;
+            if(cache!=null) cache.invalidate(pid);
+            Shard shard=shardFor(pid);
+            BufferPage bufferPage=new BufferPage(pages.get(i),tid,Permissions.READ_ONLY);
+            while (true) {
+                synchronized (shard) {
+                    shard.evicted.remove(pid);
+                    BufferPage old=shard.buffermap.get(pid);
+                    if(old!=null && !old.loading){
+                        // update the frame in place, so pins taken on it without the monitor stay on it
+                        if(old.frame>=0) shard.arena.release(old.frame);
+                        old.frame=-1;
+                        old.decoded=null;
+                        old.page=pages.get(i);
+                        shard.replacementPolicy.pageAdded(pid);
+                        break;
+                    }
+                    if(old!=null || shard.buffermap.size()<shard.capacity || evictPage(shard)){
+                        // a placeholder's pins were all taken under the monitor
+                        if(old!=null) bufferPage.pins.set(old.pins.get());
+                        shard.buffermap.put(pid,bufferPage);
+                        shard.replacementPolicy.pageAdded(pid);
+                        break;
+                    }
+                }
+                stealPage(shard);
             }
-            buffermap.put(pid,bufferPage);
+            compressEvicted(shard);
         }
 
     }
@@ -235,8 +1154,7 @@ public class BufferPool {
 
         HeapFile heapFile=(HeapFile) Database.getCatalog().getDatabaseFile(pageId.getTableId());
         ArrayList<Page> pages=heapFile.deleteTuple(tid,t);
-        BufferPage bufferPage=buffermap.get(pageId);
-        bufferPage.setNumberOfUsed(bufferPage.getNumberOfUsed()+1);
+        shardFor(pageId).replacementPolicy.pageAccessed(pageId);
         //把修改过的那一页换进来,heapfile中没有存数据，操作的就是bufferpool里的对象
     }
 
@@ -245,12 +1163,17 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for(Map.Entry<PageId,BufferPage> entry: buffermap.entrySet()){
-            flushPage(entry.getKey());
+        ArrayList<Page> dirty=new ArrayList<Page>();
+        for (Shard shard : shards) {
+            for (BufferPage bufferPage : shard.buffermap.values()) {
+                Page page=bufferPage.page;
+                if(page!=null && page.isDirty()!=null) dirty.add(page);
+            }
         }
+        writePages(dirty);
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -261,73 +1184,323 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        buffermap.remove(pid);
+        Shard shard=shardFor(pid);
+        synchronized (shard) {
+            shard.evicted.remove(pid);
+            removePage(shard,pid);
+        }
+        CompressedPageCache cache=compressedCache;
+        if (cache != null)
+            cache.invalidate(pid);
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        try {
-            TransactionId tid=buffermap.get(pid).page.isDirty();
-            Page page=getPage(tid, pid, Permissions.READ_ONLY);
-            if(tid!=null) Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
-            page.markDirty(false,tid);
-            buffermap.put(pid,new BufferPage(page,tid,Permissions.READ_ONLY));
-        }catch (Exception e){
-            e.printStackTrace();
+        Shard shard=shardFor(pid);
+        synchronized (shard) {
+            BufferPage bufferPage=shard.buffermap.get(pid);
+            // pages held only in the arena are clean
+            if(bufferPage==null || bufferPage.page==null) return;
+            Page page=bufferPage.page;
+            TransactionId tid=page.isDirty();
+            if(tid!=null) {
+                long writeStart=System.nanoTime();
+                Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+                stats.written(1, System.nanoTime()-writeStart);
+            }
+            page.markDirty(false,null);
         }
     }
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        for (Map.Entry entry:buffermap.entrySet()
-             ) {
-            BufferPage bufferPage=(BufferPage)(entry.getValue());
-            TransactionId dirtyTId=bufferPage.page.isDirty();
-            if(dirtyTId!=null && dirtyTId.equals(tid))flushPage((PageId) entry.getKey());
-            releasePage(tid,(PageId)(entry.getKey()));//刷新和该事务相关的页，刷新完了也要释放该事务上的锁
+        TransactionPages pages=transactionPages.get(tid);
+        ArrayList<Page> dirty=new ArrayList<Page>();
+        // a transaction that only took table locks, such as a bulk load, has no pages indexed
+        if(pages!=null) {
+            for (PageId pid : pages.written) {
+                BufferPage bufferPage=shardFor(pid).buffermap.get(pid);
+                Page page=bufferPage==null ? null : bufferPage.page;
+                if(page!=null && tid.equals(page.isDirty())) dirty.add(page);
+            }
+        }
+        Map<PageId, Page> stolen=stolenPages.get(tid);
+        boolean changes=!dirty.isEmpty() || (stolen != null && !stolen.isEmpty());
+        VersionStore.Commit commit=changes ? versions.startCommit() : null;
+        try {
+            if (commit != null && commit.keepsVersions()) {
+                // the committed images this commit replaces, for snapshots that began before it;
+                // a page written back early was last committed as its stolen image
+                for (Page page : dirty) {
+                    if (stolen == null || !stolen.containsKey(page.getId()))
+                        versions.keep(commit, page.getId(), page.getBeforeImage());
+                }
+                if (stolen != null) {
+                    for (Map.Entry<PageId, Page> entry : stolen.entrySet())
+                        versions.keep(commit, entry.getKey(), entry.getValue());
+                }
+            }
+            writePages(dirty);
+            // what is on disk now is what a later abort must return to
+            for (Page page : dirty)
+                page.setBeforeImage();
+            // a page written back early and left clean since is not in dirty, but
+            // its cached copy still holds the image from before tid changed it
+            if (stolen != null) {
+                for (PageId pid : stolen.keySet()) {
+                    BufferPage bufferPage=shardFor(pid).buffermap.get(pid);
+                    Page page=bufferPage==null ? null : bufferPage.cachedPage();
+                    if (page != null)
+                        page.setBeforeImage();
+                }
+            }
+            stolenPages.remove(tid);
+        } finally {
+            if (commit != null)
+                versions.finishCommit(commit);
+        }
+        TransactionLock.getTransactionLock().releaseAll(tid);//刷新和该事务相关的页，刷新完了也要释放该事务上的锁
+        if(offHeap && pages!=null) {
+            for (PageId pid : pages.locked) {
+                Shard shard=shardFor(pid);
+                synchronized (shard) {
+                    BufferPage bufferPage=shard.buffermap.get(pid);
+                    if(bufferPage!=null) demote(shard, bufferPage);
+                }
+            }
         }
     }
 
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Writes a set of pages with one {@link DbFile#writePages} call per file,
+     * so that each file can sort them and write adjacent pages together, and
+     * marks them clean.
      */
-    //不驱逐脏页
-    private synchronized  void evictPage() throws DbException {
-        // some code goes here
-        // not necessary for lab1
-        int min=Integer.MAX_VALUE;
-        PageId deletePageId=null;
-        for (PageId pageId : buffermap.keySet()) {
-            if(buffermap.get(pageId).page.isDirty()!=null)continue;
-            if(min>buffermap.get(pageId).getNumberOfUsed()){
-                min=buffermap.get(pageId).getNumberOfUsed();
-                deletePageId=pageId;
+    private void writePages(Collection<Page> pages) throws IOException {
+        Map<Integer, List<Page>> byFile=new HashMap<Integer, List<Page>>();
+        for (Page page : pages) {
+            int tableId=page.getId().getTableId();
+            List<Page> list=byFile.get(tableId);
+            if (list==null) {
+                list=new ArrayList<Page>();
+                byFile.put(tableId, list);
             }
+            list.add(page);
         }
-        if(deletePageId==null)throw new DbException("The bufferpool is full of dirty pages! Please first flush!");
-        discardPage(deletePageId);
-        for (PageId pageId : buffermap.keySet()) {
-            BufferPage bufferPage=buffermap.get(pageId);
-            bufferPage.setNumberOfUsed(bufferPage.getNumberOfUsed()-min);
+        for (Map.Entry<Integer, List<Page>> entry : byFile.entrySet()) {
+            long writeStart=System.nanoTime();
+            Database.getCatalog().getDatabaseFile(entry.getKey()).writePages(entry.getValue());
+            stats.written(entry.getValue().size(), System.nanoTime()-writeStart);
+            for (Page page : entry.getValue())
+                page.markDirty(false,null);
         }
-        /*for (PageId pageId : buffermap.keySet()) {
-            if(buffermap.get(pageId).page.isDirty()!=null)continue;
-            buffermap.remove(pageId);
+    }
+
+    /**
+     * Writes a dirty page to disk before its transaction commits. The UPDATE
+     * record is forced to the log before the page is written, and the page's
+     * before-image is kept so that {@link #transactionComplete(TransactionId, boolean)}
+     * can undo the write on abort. Does nothing if the page is not cached or
+     * not dirty.
+     * Must not be called while holding a shard's monitor.
+     *
+     * @param pid the page to write
+     */
+    void writeBack(PageId pid) throws IOException {
+        LogFile log=Database.getLogFile();
+        Shard shard=shardFor(pid);
+        synchronized (log) {
+            synchronized (shard) {
+                BufferPage bufferPage=shard.buffermap.get(pid);
+                if (bufferPage==null || !bufferPage.isDirty())
+                    return;
+                Page page=bufferPage.page;
+                // the owner may still be changing the page; its changes
+                // synchronize on it, so latching it keeps the logged image,
+                // the written image and the clean mark in step, and any change
+                // made after we let go is followed by the owner's markDirty
+                synchronized (page) {
+                    TransactionId tid=page.isDirty();
+                    if (tid==null)
+                        return;
+                    Page before=page.getBeforeImage();
+                    log.logWrite(tid, before, page);
+                    log.force();
+                    Map<PageId, Page> stolen=stolenPages.get(tid);
+                    if (stolen==null) {
+                        stolenPages.putIfAbsent(tid, new ConcurrentHashMap<PageId, Page>());
+                        stolen=stolenPages.get(tid);
+                    }
+                    // keep the oldest image: that is what the disk held when tid started writing
+                    if (!stolen.containsKey(pid))
+                        stolen.put(pid, before);
+                    long writeStart=System.nanoTime();
+                    Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+                    stats.written(1, System.nanoTime()-writeStart);
+                    stats.wroteBack();
+                    page.markDirty(false,null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes pages that a transaction has built from scratch past the end of
+     * their file, such as those of a bulk load, straight to disk without
+     * caching them. Each page gets one UPDATE record against its before-image,
+     * which for a new page is empty, and the log is forced once for the whole
+     * batch before the pages are written. As with a page written back early,
+     * the before-images are kept so that an abort empties the pages again and
+     * snapshots keep seeing them empty until the transaction commits.
+     * <p>
+     * The caller must hold a lock on the table that keeps every other
+     * transaction off the pages.
+     *
+     * @param tid the transaction that built the pages
+     * @param pages new pages, all of one file
+     */
+    public void appendPages(TransactionId tid, List<Page> pages) throws IOException {
+        if (pages.isEmpty())
             return;
+        LogFile log=Database.getLogFile();
+        Map<PageId, Page> stolen=stolenPages.get(tid);
+        if (stolen==null) {
+            stolenPages.putIfAbsent(tid, new ConcurrentHashMap<PageId, Page>());
+            stolen=stolenPages.get(tid);
+        }
+        synchronized (log) {
+            for (Page page : pages) {
+                Page before=page.getBeforeImage();
+                log.logWrite(tid, before, page);
+                if (!stolen.containsKey(page.getId()))
+                    stolen.put(page.getId(), before);
+            }
+            log.force();
+        }
+        // drop anything cached for these page numbers, such as a page read past the old end of the file
+        for (Page page : pages)
+            discardPage(page.getId());
+        long writeStart=System.nanoTime();
+        Database.getCatalog().getDatabaseFile(pages.get(0).getId().getTableId()).writePages(pages);
+        stats.written(pages.size(), System.nanoTime()-writeStart);
+    }
+
+    /**
+     * @return the ids of all pages that are currently dirty
+     */
+    ArrayList<PageId> dirtyPageIds() {
+        ArrayList<PageId> dirty=new ArrayList<PageId>();
+        for (Shard shard : shards) {
+            for (Map.Entry<PageId, BufferPage> entry : shard.buffermap.entrySet()) {
+                if (entry.getValue().isDirty())
+                    dirty.add(entry.getKey());
+            }
+        }
+        return dirty;
+    }
+
+    /**
+     * Makes room in a shard that holds nothing but dirty or pinned pages by
+     * writing an unpinned dirty page back, so the caller can evict it on its next attempt.
+     * Must not be called while holding the shard's monitor.
+     */
+    private void stealPage(final Shard shard) throws DbException {
+        PageId victim;
+        synchronized (shard) {
+            victim=shard.replacementPolicy.chooseVictim(new ReplacementPolicy.Evictable() {
+                @Override
+                public boolean canEvict(PageId pid) {
+                    BufferPage bufferPage=shard.buffermap.get(pid);
+                    return bufferPage!=null && bufferPage.isDirty() && bufferPage.pins.get()==0;
+                }
+            });
+        }
+        if(victim==null)throw new DbException("The bufferpool is full and no page can be written back!");
+        try {
+            writeBack(victim);
+        } catch (IOException e) {
+            throw new DbException("unable to write back page " + victim.getPageNumber() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Compresses the pages evicted from a shard into the compressed cache.
+     * Called without the shard's monitor by threads that may have evicted
+     * pages, so that deflating a page never holds up the shard's hits and
+     * misses. An image whose page was loaded or discarded in the meantime is
+     * dropped instead.
+     */
+    private void compressEvicted(Shard shard) {
+        while (!shard.evicted.isEmpty()) {
+            PageId pid=null;
+            Evicted evicted=null;
+            synchronized (shard) {
+                for (Map.Entry<PageId,Evicted> entry : shard.evicted.entrySet()) {
+                    if (!entry.getValue().taken) {
+                        pid=entry.getKey();
+                        evicted=entry.getValue();
+                        evicted.taken=true;
+                        break;
+                    }
+                }
+            }
+            // whatever is left is being compressed by other threads
+            if (evicted==null)
+                return;
+            CompressedPageCache cache=compressedCache;
+            byte[] compressed=cache==null ? null : CompressedPageCache.compress(evicted.data);
+            synchronized (shard) {
+                if (shard.evicted.remove(pid, evicted) && cache!=null)
+                    cache.putCompressed(pid, compressed);
+            }
+        }
+    }
+
+    /**
+     * Discards a clean page from the buffer pool.
+     * The caller must hold the shard's monitor.
+     *
+     * @return false if every page in the shard is dirty or pinned
+     */
+    //不驱逐脏页
+    private boolean evictPage(final Shard shard) {
+        // some code goes here
+        // not necessary for lab1
+        ReplacementPolicy.Evictable evictable=new ReplacementPolicy.Evictable() {
+            @Override
+            public boolean canEvict(PageId pid) {
+                BufferPage bufferPage=shard.buffermap.get(pid);
+                return bufferPage!=null && !bufferPage.loading && !bufferPage.isDirty() && bufferPage.pins.get()==0;
+            }
+        };
+        PageId deletePageId;
+        BufferPage bufferPage;
+        do {
+            deletePageId=shard.replacementPolicy.chooseVictim(evictable);
+            if(deletePageId==null)return false;
+            bufferPage=shard.buffermap.get(deletePageId);
+            // a lock-free hit may have pinned it since canEvict looked
+        } while (!bufferPage.claim());
+        // only the bytes are taken here; the caller compresses them once it
+        // has let go of the monitor, in compressEvicted
+        if(compressedCache!=null && deletePageId instanceof HeapPageId){
+            shard.evicted.put(deletePageId, new Evicted(bufferPage.page!=null ? bufferPage.page.getPageData()
+                    : shard.arena.read(bufferPage.frame)));
         }
-        throw new DbException("The bufferpool is full of dirty pages! Please first flush!");*/
+        removePage(shard,deletePageId);
+        stats.evicted();
+        return true;
     }
 
 }
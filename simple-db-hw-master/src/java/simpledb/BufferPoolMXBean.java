@@ -0,0 +1,64 @@
+package simpledb;
+
+import java.util.Map;
+
+/**
+ * The JMX view of the current {@link Database#getBufferPool() buffer pool},
+ * registered as {@link BufferPoolMetrics#OBJECT_NAME}. Each attribute is read
+ * from a fresh {@link BufferPoolStats.Snapshot}. Latencies are in
+ * microseconds; percentiles are bucket upper bounds, see
+ * {@link LatencyHistogram}. The pool can also be resized from a JMX console.
+ */
+public interface BufferPoolMXBean {
+    int getCapacity();
+
+    int getCachedFrames();
+
+    int getDirtyFrames();
+
+    int getPinnedFrames();
+
+    long getHits();
+
+    long getMisses();
+
+    double getHitRatio();
+
+    Map<Integer, Long> getHitsByTable();
+
+    Map<Integer, Long> getMissesByTable();
+
+    long getEvictions();
+
+    long getWriteBacks();
+
+    long getPrefetches();
+
+    long getSecondTierHits();
+
+    long getPagesWritten();
+
+    double getReadLatencyMeanMicros();
+
+    long getReadLatencyP99Micros();
+
+    double getWriteLatencyMeanMicros();
+
+    long getWriteLatencyP99Micros();
+
+    long getLockWaitTotalMillis();
+
+    long getLockWaitP99Micros();
+
+    /** @return lock requests that had to wait, from {@link TransactionLock} */
+    long getLockWaits();
+
+    /** @return deadlocks broken by aborting a transaction, from {@link TransactionLock} */
+    long getDeadlocks();
+
+    /** @return page locks escalated to a table lock, from {@link TransactionLock} */
+    long getLockEscalations();
+
+    /** @see BufferPool#resize(int) */
+    void resize(int numPages) throws DbException;
+}
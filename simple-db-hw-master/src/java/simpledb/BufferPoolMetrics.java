@@ -0,0 +1,157 @@
+package simpledb;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Exports the statistics of whatever BufferPool {@link Database} currently
+ * uses through JMX. Nothing is computed until a JMX client reads an
+ * attribute. Taking a snapshot walks the whole pool, so one snapshot answers
+ * every attribute read within {@link #SNAPSHOT_MAX_AGE_MILLIS} of it, and a
+ * client polling all attributes walks the pool once per poll.
+ */
+public class BufferPoolMetrics implements BufferPoolMXBean {
+
+    public static final String OBJECT_NAME = "simpledb:type=BufferPool";
+
+    /** How long one snapshot of the pool's statistics is reused. */
+    public static final long SNAPSHOT_MAX_AGE_MILLIS = 1000;
+
+    private static boolean registered;
+
+    private BufferPool snapshotPool;
+    private BufferPoolStats.Snapshot snapshot;
+    private long snapshotTime;
+
+    /**
+     * Registers the MBean with the platform MBean server, once per JVM.
+     * Failures are reported and otherwise ignored: the database works the
+     * same without JMX.
+     */
+    public static synchronized void register() {
+        if (registered)
+            return;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name))
+                server.registerMBean(new BufferPoolMetrics(), name);
+            registered = true;
+        } catch (JMException e) {
+            e.printStackTrace();
+        } catch (SecurityException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized BufferPoolStats.Snapshot stats() {
+        BufferPool pool = Database.getBufferPool();
+        long now = System.currentTimeMillis();
+        if (snapshot == null || pool != snapshotPool || now - snapshotTime >= SNAPSHOT_MAX_AGE_MILLIS) {
+            snapshot = pool.getStats();
+            snapshotPool = pool;
+            snapshotTime = now;
+        }
+        return snapshot;
+    }
+
+    public int getCapacity() {
+        return stats().getCapacity();
+    }
+
+    public int getCachedFrames() {
+        return stats().getCachedFrames();
+    }
+
+    public int getDirtyFrames() {
+        return stats().getDirtyFrames();
+    }
+
+    public int getPinnedFrames() {
+        return stats().getPinnedFrames();
+    }
+
+    public long getHits() {
+        return stats().getHits();
+    }
+
+    public long getMisses() {
+        return stats().getMisses();
+    }
+
+    public double getHitRatio() {
+        return stats().getHitRatio();
+    }
+
+    public Map<Integer, Long> getHitsByTable() {
+        return stats().getHitsByTable();
+    }
+
+    public Map<Integer, Long> getMissesByTable() {
+        return stats().getMissesByTable();
+    }
+
+    public long getEvictions() {
+        return stats().getEvictions();
+    }
+
+    public long getWriteBacks() {
+        return stats().getWriteBacks();
+    }
+
+    public long getPrefetches() {
+        return stats().getPrefetches();
+    }
+
+    public long getSecondTierHits() {
+        return stats().getSecondTierHits();
+    }
+
+    public long getPagesWritten() {
+        return stats().getPagesWritten();
+    }
+
+    public double getReadLatencyMeanMicros() {
+        return stats().getReadLatency().getMeanMicros();
+    }
+
+    public long getReadLatencyP99Micros() {
+        return stats().getReadLatency().getPercentileMicros(0.99);
+    }
+
+    public double getWriteLatencyMeanMicros() {
+        return stats().getWriteLatency().getMeanMicros();
+    }
+
+    public long getWriteLatencyP99Micros() {
+        return stats().getWriteLatency().getPercentileMicros(0.99);
+    }
+
+    public long getLockWaitTotalMillis() {
+        return stats().getLockWait().getTotalNanos() / 1000000;
+    }
+
+    public long getLockWaitP99Micros() {
+        return stats().getLockWait().getPercentileMicros(0.99);
+    }
+
+    public long getLockWaits() {
+        return TransactionLock.getTransactionLock().getWaits();
+    }
+
+    public long getDeadlocks() {
+        return TransactionLock.getTransactionLock().getDeadlocks();
+    }
+
+    public long getLockEscalations() {
+        return TransactionLock.getTransactionLock().getEscalations();
+    }
+
+    public void resize(int numPages) throws DbException {
+        Database.getBufferPool().resize(numPages);
+    }
+}
@@ -0,0 +1,244 @@
+package simpledb;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * BufferPoolStats collects the counters a {@link BufferPool} updates as it
+ * works. Every counter is a {@link LongAdder} or {@link LatencyHistogram}, so
+ * updating one never makes threads contend; the work of adding them up is
+ * only done when someone asks for a {@link Snapshot}.
+ */
+public class BufferPoolStats {
+
+    /** hits and misses of one table */
+    private static class TableCounters {
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+    }
+
+    private final Map<Integer, TableCounters> tables = new ConcurrentHashMap<Integer, TableCounters>();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder writeBacks = new LongAdder();
+    private final LongAdder prefetches = new LongAdder();
+    private final LongAdder secondTierHits = new LongAdder();
+    private final LongAdder pagesWritten = new LongAdder();
+    private final LatencyHistogram readLatency = new LatencyHistogram();
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+
+    private TableCounters table(int tableId) {
+        TableCounters c = tables.get(tableId);
+        if (c == null) {
+            tables.putIfAbsent(tableId, new TableCounters());
+            c = tables.get(tableId);
+        }
+        return c;
+    }
+
+    void hit(PageId pid) {
+        table(pid.getTableId()).hits.increment();
+    }
+
+    /**
+     * @param nanos how long reading the page from its file took
+     */
+    void miss(PageId pid, long nanos) {
+        table(pid.getTableId()).misses.increment();
+        readLatency.record(nanos);
+    }
+
+    void prefetched(long nanos) {
+        prefetches.increment();
+        readLatency.record(nanos);
+    }
+
+    void secondTierHit() {
+        secondTierHits.increment();
+    }
+
+    void evicted() {
+        evictions.increment();
+    }
+
+    /**
+     * @param pages how many pages one write call covered
+     * @param nanos how long the call took
+     */
+    void written(int pages, long nanos) {
+        pagesWritten.add(pages);
+        writeLatency.record(nanos);
+    }
+
+    void wroteBack() {
+        writeBacks.increment();
+    }
+
+    /**
+     * Adds up the counters. The gauges are measured by the pool and passed in.
+     * Lock waits are the ones {@link TransactionLock} timed on its blocking
+     * path, so requests granted without waiting add nothing to them.
+     */
+    Snapshot snapshot(int capacity, int cachedFrames, int dirtyFrames, int pinnedFrames) {
+        Map<Integer, Long> hits = new HashMap<Integer, Long>();
+        Map<Integer, Long> misses = new HashMap<Integer, Long>();
+        for (Map.Entry<Integer, TableCounters> e : tables.entrySet()) {
+            hits.put(e.getKey(), e.getValue().hits.sum());
+            misses.put(e.getKey(), e.getValue().misses.sum());
+        }
+        return new Snapshot(capacity, cachedFrames, dirtyFrames, pinnedFrames, hits, misses,
+                evictions.sum(), writeBacks.sum(), prefetches.sum(), secondTierHits.sum(), pagesWritten.sum(),
+                readLatency.snapshot(), writeLatency.snapshot(),
+                TransactionLock.getTransactionLock().getWaitTimes());
+    }
+
+    /**
+     * The state of a BufferPool at one point in time. Counters cover the
+     * whole life of the pool.
+     */
+    public static class Snapshot {
+        private final int capacity;
+        private final int cachedFrames;
+        private final int dirtyFrames;
+        private final int pinnedFrames;
+        private final Map<Integer, Long> hitsByTable;
+        private final Map<Integer, Long> missesByTable;
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long writeBacks;
+        private final long prefetches;
+        private final long secondTierHits;
+        private final long pagesWritten;
+        private final LatencyHistogram.Snapshot readLatency;
+        private final LatencyHistogram.Snapshot writeLatency;
+        private final LatencyHistogram.Snapshot lockWait;
+
+        Snapshot(int capacity, int cachedFrames, int dirtyFrames, int pinnedFrames,
+                Map<Integer, Long> hitsByTable, Map<Integer, Long> missesByTable,
+                long evictions, long writeBacks, long prefetches, long secondTierHits, long pagesWritten,
+                LatencyHistogram.Snapshot readLatency, LatencyHistogram.Snapshot writeLatency,
+                LatencyHistogram.Snapshot lockWait) {
+            this.capacity = capacity;
+            this.cachedFrames = cachedFrames;
+            this.dirtyFrames = dirtyFrames;
+            this.pinnedFrames = pinnedFrames;
+            this.hitsByTable = Collections.unmodifiableMap(hitsByTable);
+            this.missesByTable = Collections.unmodifiableMap(missesByTable);
+            long h = 0, m = 0;
+            for (long n : hitsByTable.values())
+                h += n;
+            for (long n : missesByTable.values())
+                m += n;
+            this.hits = h;
+            this.misses = m;
+            this.evictions = evictions;
+            this.writeBacks = writeBacks;
+            this.prefetches = prefetches;
+            this.secondTierHits = secondTierHits;
+            this.pagesWritten = pagesWritten;
+            this.readLatency = readLatency;
+            this.writeLatency = writeLatency;
+            this.lockWait = lockWait;
+        }
+
+        /** @return the maximum number of pages the pool holds */
+        public int getCapacity() {
+            return capacity;
+        }
+
+        /** @return the number of pages currently cached */
+        public int getCachedFrames() {
+            return cachedFrames;
+        }
+
+        /** @return the number of cached pages that are dirty */
+        public int getDirtyFrames() {
+            return dirtyFrames;
+        }
+
+        /** @return the number of cached pages that are pinned */
+        public int getPinnedFrames() {
+            return pinnedFrames;
+        }
+
+        /** @return getPage calls that found the page cached */
+        public long getHits() {
+            return hits;
+        }
+
+        /** @return getPage calls that had to read the page from its file */
+        public long getMisses() {
+            return misses;
+        }
+
+        /** @return hits / (hits + misses), or 0 before the first request */
+        public double getHitRatio() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+
+        /** @return hits by table id */
+        public Map<Integer, Long> getHitsByTable() {
+            return hitsByTable;
+        }
+
+        /** @return misses by table id */
+        public Map<Integer, Long> getMissesByTable() {
+            return missesByTable;
+        }
+
+        /** @return clean pages evicted to make room */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /** @return dirty pages written back before their transaction committed */
+        public long getWriteBacks() {
+            return writeBacks;
+        }
+
+        /** @return pages loaded by read-ahead */
+        public long getPrefetches() {
+            return prefetches;
+        }
+
+        /** @return misses served from the compressed second-tier cache instead of disk */
+        public long getSecondTierHits() {
+            return secondTierHits;
+        }
+
+        /** @return pages written to disk by the pool */
+        public long getPagesWritten() {
+            return pagesWritten;
+        }
+
+        /** @return time spent reading single pages on a miss or for read-ahead */
+        public LatencyHistogram.Snapshot getReadLatency() {
+            return readLatency;
+        }
+
+        /** @return time spent in each write call, which may cover several pages */
+        public LatencyHistogram.Snapshot getWriteLatency() {
+            return writeLatency;
+        }
+
+        /**
+         * @return how long lock requests that had to wait waited, across
+         *         every pool since the lock manager was created
+         */
+        public LatencyHistogram.Snapshot getLockWait() {
+            return lockWait;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("BufferPool[%d/%d frames, %d dirty, %d pinned, hit ratio %.3f, %d misses, "
+                    + "%d evictions, %d write-backs, read %.1fus avg, lock wait %.1fus avg]",
+                    cachedFrames, capacity, dirtyFrames, pinnedFrames, getHitRatio(), misses,
+                    evictions, writeBacks, readLatency.getMeanMicros(), lockWait.getMeanMicros());
+        }
+    }
+}
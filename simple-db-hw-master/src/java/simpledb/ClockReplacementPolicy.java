@@ -0,0 +1,98 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * CLOCK (second chance) replacement. Cached pages sit in a ring of slots,
+ * each with a reference bit that is set whenever the page is used. To find a
+ * victim the clock hand sweeps the ring, clearing set bits as it passes, and
+ * stops at the first page whose bit is already clear and that the BufferPool
+ * allows to be evicted. Pages the pool cannot evict, such as dirty or pinned
+ * ones, are passed over without touching their bit, so they still get their
+ * second chance once they can be evicted, and a sweep that meets no
+ * evictable page at all gives up after one lap instead of two.
+ * <p>
+ * Slots freed by discarded pages are reused, so the ring never grows past the
+ * largest number of pages the pool has held at once.
+ */
+public class ClockReplacementPolicy implements ReplacementPolicy {
+
+    /** Creates a new CLOCK policy for each shard. */
+    public static final Factory FACTORY = new Factory() {
+        public ReplacementPolicy create() {
+            return new ClockReplacementPolicy();
+        }
+    };
+
+    private final ArrayList<PageId> slots = new ArrayList<PageId>();
+    private final BitSet referenced = new BitSet();
+    private final Map<PageId, Integer> slotOf = new HashMap<PageId, Integer>();
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<Integer>();
+    private int hand = 0;
+
+    public synchronized void pageAdded(PageId pid) {
+        referenced.set(slotFor(pid));
+    }
+
+    public synchronized void pageAddedCold(PageId pid) {
+        // leave the reference bit clear so the next sweep takes it
+        slotFor(pid);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        Integer slot = slotOf.get(pid);
+        if (slot != null)
+            referenced.set(slot);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer slot = slotOf.remove(pid);
+        if (slot == null)
+            return;
+        slots.set(slot, null);
+        referenced.clear(slot);
+        freeSlots.push(slot);
+    }
+
+    public synchronized PageId chooseVictim(Evictable evictable) {
+        int n = slots.size();
+        boolean cleared = false;
+        // the first lap clears the bits of every evictable page, so two laps
+        // are enough to visit each of them once with its bit clear
+        for (int i = 0; i < 2 * n && !slotOf.isEmpty(); i++) {
+            if (i == n && !cleared)
+                return null;
+            int slot = hand;
+            hand = (hand + 1) % n;
+            PageId pid = slots.get(slot);
+            if (pid == null || !evictable.canEvict(pid))
+                continue;
+            if (referenced.get(slot)) {
+                referenced.clear(slot);
+                cleared = true;
+                continue;
+            }
+            return pid;
+        }
+        return null;
+    }
+
+    private int slotFor(PageId pid) {
+        Integer slot = slotOf.get(pid);
+        if (slot == null) {
+            slot = freeSlots.poll();
+            if (slot == null) {
+                slot = slots.size();
+                slots.add(pid);
+            } else {
+                slots.set(slot, pid);
+            }
+            slotOf.put(pid, slot);
+        }
+        return slot;
+    }
+}
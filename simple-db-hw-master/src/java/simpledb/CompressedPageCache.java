@@ -0,0 +1,166 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * CompressedPageCache is a second tier behind the BufferPool. Clean pages the
+ * pool evicts are deflated and kept here, least recently stored first out,
+ * until their compressed size adds up to a byte budget. On a miss the pool
+ * looks here before going to disk, and a page found here moves back to the
+ * pool. Heap pages are mostly zero padding, so many of them fit in the space
+ * of one uncompressed page.
+ * <p>
+ * Entries are only valid while the page on disk does not change behind the
+ * pool's back; the pool removes a page from this cache whenever it discards
+ * or replaces it.
+ * <p>
+ * Compression runs outside the cache's monitor with one Deflater and one
+ * Inflater per thread. A caller that must not compress while holding its own
+ * monitor can {@link #compress} first and {@link #putCompressed} later.
+ */
+public class CompressedPageCache {
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private final long maxBytes;
+    private long bytes;
+    private final LinkedHashMap<PageId, byte[]> pages = new LinkedHashMap<PageId, byte[]>();
+
+    /**
+     * @param maxBytes the most compressed bytes to keep
+     */
+    public CompressedPageCache(long maxBytes) {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("maxBytes must be positive");
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Compresses and stores a page image, replacing any older image of the
+     * same page and dropping the oldest entries to stay within budget.
+     *
+     * @param pid the page
+     * @param data the page's bytes, as written to disk
+     */
+    public void put(PageId pid, byte[] data) {
+        putCompressed(pid, compress(data));
+    }
+
+    /**
+     * Stores a page image already deflated by {@link #compress}, like
+     * {@link #put}.
+     *
+     * @param pid the page
+     * @param compressed the page's bytes, compressed
+     */
+    public synchronized void putCompressed(PageId pid, byte[] compressed) {
+        byte[] old = pages.remove(pid);
+        if (old != null)
+            bytes -= old.length;
+        if (compressed.length > maxBytes)
+            return;
+        pages.put(pid, compressed);
+        bytes += compressed.length;
+        Iterator<Map.Entry<PageId, byte[]>> it = pages.entrySet().iterator();
+        while (bytes > maxBytes) {
+            bytes -= it.next().getValue().length;
+            it.remove();
+        }
+    }
+
+    /**
+     * Removes a page from the cache and returns its bytes.
+     *
+     * @param pid the page
+     * @param pageSize the uncompressed size of the page
+     * @return the page's bytes, or null if it is not cached
+     */
+    public byte[] take(PageId pid, int pageSize) {
+        byte[] compressed;
+        synchronized (this) {
+            compressed = pages.remove(pid);
+            if (compressed == null)
+                return null;
+            bytes -= compressed.length;
+        }
+        return inflate(compressed, pageSize);
+    }
+
+    /**
+     * Drops a page from the cache, if present.
+     */
+    public synchronized void invalidate(PageId pid) {
+        byte[] old = pages.remove(pid);
+        if (old != null)
+            bytes -= old.length;
+    }
+
+    /**
+     * @return the number of pages cached
+     */
+    public synchronized int size() {
+        return pages.size();
+    }
+
+    /**
+     * @return the compressed bytes currently held
+     */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Deflates a page image in the form {@link #putCompressed} stores.
+     *
+     * @param data the page's bytes
+     * @return the compressed bytes
+     */
+    public static byte[] compress(byte[] data) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        // zero-padded pages shrink a lot; grow the buffer for the ones that do not
+        byte[] out = new byte[Math.max(64, data.length / 8)];
+        int n = 0;
+        while (!deflater.finished()) {
+            if (n == out.length)
+                out = Arrays.copyOf(out, out.length * 2);
+            n += deflater.deflate(out, n, out.length - n);
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static byte[] inflate(byte[] compressed, int pageSize) {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(compressed);
+        byte[] data = new byte[pageSize];
+        try {
+            int n = 0;
+            while (n < pageSize && !inflater.finished() && !inflater.needsInput())
+                n += inflater.inflate(data, n, pageSize - n);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("corrupt compressed page", e);
+        }
+        return data;
+    }
+}
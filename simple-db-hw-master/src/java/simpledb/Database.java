@@ -21,6 +21,10 @@ public class Database {
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
 
+    static {
+        BufferPoolMetrics.register();
+    }
+
     private Database() {
         _catalog = new Catalog();
         _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
@@ -45,6 +49,14 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /**
+     * Return the statistics of the static Database instance's buffer pool.
+     * The same numbers are exported over JMX as {@link BufferPoolMetrics#OBJECT_NAME}.
+     */
+    public static BufferPoolStats.Snapshot getBufferPoolStats() {
+        return _instance.get()._bufferpool.getStats();
+    }
+
     /** Return the catalog of the static Database instance */
     public static Catalog getCatalog() {
         return _instance.get()._catalog;
@@ -77,6 +89,7 @@ public class Database {
     // reset the database, used for unit tests only.
     public static void reset() {
         _instance.set(new Database());
+        TransactionLock.getTransactionLock().reset();
     }
 
 }
@@ -29,6 +29,20 @@ public interface DbFile {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Push several pages of this file to disk. Files that can write adjacent
+     * pages together should override this; by default each page is written
+     * with {@link #writePage}.
+     *
+     * @param pages the pages to write, in any order
+     * @throws IOException if a write fails; pages before the failing one may
+     *   already be on disk
+     */
+    public default void writePages(List<Page> pages) throws IOException {
+        for (Page p : pages)
+            writePage(p);
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
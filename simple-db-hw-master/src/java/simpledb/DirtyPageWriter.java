@@ -0,0 +1,147 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * DirtyPageWriter is a background thread that writes dirty pages back to disk
+ * before their transactions commit, so that commit has less left to write and
+ * a large transaction does not fill the BufferPool with pages it cannot evict.
+ * <p>
+ * Every {@link FlushPolicy#intervalMillis} the writer looks at the dirty pages
+ * in the pool. It writes every page that has been dirty for longer than
+ * {@link FlushPolicy#maxDirtyAgeMillis}, and if more than
+ * {@link FlushPolicy#highDirtyRatio} of the pool is dirty it writes the
+ * longest-dirty pages until the ratio drops to
+ * {@link FlushPolicy#lowDirtyRatio}.
+ * <p>
+ * Pages are written through {@link BufferPool#writeBack(PageId)}, which
+ * forces an UPDATE record to the log before the page itself (write-ahead
+ * logging) and remembers the before-image so that an abort can undo the
+ * write.
+ */
+public class DirtyPageWriter implements Runnable {
+
+    /**
+     * When the writer runs and what it writes. Ratios are fractions of the
+     * pool's capacity; an age or ratio of 0 disables that trigger.
+     */
+    public static class FlushPolicy {
+        public final long intervalMillis;
+        public final long maxDirtyAgeMillis;
+        public final double highDirtyRatio;
+        public final double lowDirtyRatio;
+
+        public FlushPolicy(long intervalMillis, long maxDirtyAgeMillis,
+                double highDirtyRatio, double lowDirtyRatio) {
+            if (intervalMillis <= 0)
+                throw new IllegalArgumentException("interval must be positive");
+            if (lowDirtyRatio > highDirtyRatio)
+                throw new IllegalArgumentException("low dirty ratio must not exceed the high one");
+            this.intervalMillis = intervalMillis;
+            this.maxDirtyAgeMillis = maxDirtyAgeMillis;
+            this.highDirtyRatio = highDirtyRatio;
+            this.lowDirtyRatio = lowDirtyRatio;
+        }
+    }
+
+    /** Wake up every 200ms, write pages dirty for 5s, keep the pool under 50% dirty. */
+    public static final FlushPolicy DEFAULT_POLICY = new FlushPolicy(200, 5000, 0.5, 0.3);
+
+    private final BufferPool pool;
+    private final FlushPolicy policy;
+    /** when each currently dirty page was first seen dirty */
+    private final Map<PageId, Long> dirtySince = new HashMap<PageId, Long>();
+    private volatile boolean running = true;
+    private Thread thread;
+
+    public DirtyPageWriter(BufferPool pool, FlushPolicy policy) {
+        this.pool = pool;
+        this.policy = policy;
+    }
+
+    /** Starts the writer on a daemon thread. */
+    public synchronized void start() {
+        thread = new Thread(this, "simpledb-dirty-page-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Stops the writer and waits for the current round to finish. */
+    public void shutdown() {
+        running = false;
+        Thread t;
+        synchronized (this) {
+            t = thread;
+        }
+        if (t == null)
+            return;
+        t.interrupt();
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                Thread.sleep(policy.intervalMillis);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            try {
+                writeRound();
+            } catch (IOException e) {
+                // the page stays dirty and is retried next round or at commit
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Writes whatever the policy asks for right now. Public so that tests and
+     * callers can drive the writer without waiting for the thread.
+     */
+    public synchronized void writeRound() throws IOException {
+        long now = System.currentTimeMillis();
+        List<PageId> dirty = pool.dirtyPageIds();
+        HashSet<PageId> stillDirty = new HashSet<PageId>(dirty);
+        dirtySince.keySet().retainAll(stillDirty);
+        for (PageId pid : dirty) {
+            if (!dirtySince.containsKey(pid))
+                dirtySince.put(pid, now);
+        }
+
+        // oldest first
+        List<PageId> byAge = new ArrayList<PageId>(dirty);
+        Collections.sort(byAge, new Comparator<PageId>() {
+            public int compare(PageId a, PageId b) {
+                return Long.compare(dirtySince.get(a), dirtySince.get(b));
+            }
+        });
+
+        int capacity = pool.getNumPages();
+        int remaining = byAge.size();
+        int target = remaining;
+        if (policy.highDirtyRatio > 0 && remaining > policy.highDirtyRatio * capacity)
+            target = (int) (policy.lowDirtyRatio * capacity);
+
+        for (PageId pid : byAge) {
+            boolean tooOld = policy.maxDirtyAgeMillis > 0
+                    && now - dirtySince.get(pid) >= policy.maxDirtyAgeMillis;
+            if (!tooOld && remaining <= target)
+                break;
+            pool.writeBack(pid);
+            dirtySince.remove(pid);
+            remaining--;
+        }
+    }
+}
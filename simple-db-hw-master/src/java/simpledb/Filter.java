@@ -12,6 +12,8 @@ public class Filter extends Operator {
     private Predicate p;
     private OpIterator child;
     private boolean isOpen=false;
+    /** true if the child is a scan that applies p itself */
+    private boolean pushedDown=false;
 
     /**
      * Constructor accepts a predicate to apply and a child operator to read
@@ -42,6 +44,9 @@ public class Filter extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
+        // a scan can test p on each page before building the tuples
+        pushedDown=child instanceof SeqScan;
+        if(pushedDown)((SeqScan)child).setPredicate(p);
         super.open();
         child.open();
     }
@@ -73,7 +78,7 @@ public class Filter extends Operator {
 //        if(!open())return null;
         Tuple tuple;
         while (child.hasNext() && (tuple=child.next())!=null){
-            if(p.filter(tuple))return tuple;
+            if(pushedDown || p.filter(tuple))return tuple;
         }
         return null;
     }
@@ -0,0 +1,208 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+/**
+ * FreeSpaceMap records roughly how many empty slots each page of a HeapFile
+ * has, so that an insert can go straight to a page with room instead of
+ * trying every page from the start of the file.
+ * <p>
+ * The map is only a hint: it is updated as tuples are inserted and deleted,
+ * whether or not those transactions commit, and the inserter checks the page
+ * it is sent to under its lock. A page the map believes full is never
+ * tried, so the map errs towards recording less free space than a page has.
+ * Pages the map knows nothing about are tried in page order once no known
+ * page has room, before the file grows.
+ * <p>
+ * By default the map lives in memory only and is rebuilt as pages are
+ * touched. A map opened with {@link #FreeSpaceMap(File, int)} is also saved
+ * next to its heap file, in a file with the same name plus ".fsm": the heap
+ * file's page count and a CRC32 of the entries, then one byte per page
+ * holding the page's free slots plus one, capped at 255, with 0 for
+ * unknown. Updates are only made in memory; {@link #save(int)} writes them
+ * out in one go. HeapFile saves the map after writing a batch of pages, such
+ * as a commit or a flush of the whole pool, and when it is closed. A page
+ * written on its own, such as one written back early to free a frame, only
+ * saves the map through {@link #saveIfDue(int)}, once
+ * {@link #SAVE_THRESHOLD} entries have changed. On opening, a saved map is
+ * thrown away if it was saved for a different number of pages or its
+ * checksum does not match.
+ */
+public class FreeSpaceMap {
+
+    /** the most free slots an entry can record */
+    public static final int MAX_RECORDED = 254;
+
+    /** changed entries after which {@link #saveIfDue(int)} saves the map */
+    public static final int SAVE_THRESHOLD = 64;
+
+    /** page count, then the CRC32 of the entries */
+    private static final int HEADER_BYTES = 12;
+
+    /** the map's file, or null if the map is not saved */
+    private final File file;
+    /** free slots plus one, capped, for each page; 0 if unknown */
+    private byte[] entries = new byte[0];
+    /** the pages known to have at least one empty slot */
+    private final BitSet hasRoom = new BitSet();
+    /** the pages with an entry */
+    private final BitSet known = new BitSet();
+    /** the number of entry changes since the map was loaded or saved */
+    private int changed;
+    /** opened on the first save, until {@link #close} */
+    private FileChannel channel;
+
+    /**
+     * Creates an empty map that is kept in memory only.
+     */
+    public FreeSpaceMap() {
+        this.file = null;
+    }
+
+    /**
+     * Opens the saved free-space map of a heap file, loading it from disk if
+     * it was saved for the heap file's current number of pages and is intact.
+     *
+     * @param heapFile the heap file the map describes
+     * @param numPages the heap file's current number of pages
+     */
+    public FreeSpaceMap(File heapFile, int numPages) {
+        this.file = new File(heapFile.getPath() + ".fsm");
+        if (file.exists()) {
+            try {
+                load(numPages);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Returns a page worth trying for an insert: the lowest page known to have
+     * room or, failing that, the lowest page the map knows nothing about.
+     *
+     * @param numPages the number of pages in the heap file
+     * @return a page number, or -1 if every page is believed full
+     */
+    public synchronized int pageWithRoom(int numPages) {
+        int pgno = hasRoom.nextSetBit(0);
+        if (pgno >= 0 && pgno < numPages)
+            return pgno;
+        pgno = known.nextClearBit(0);
+        return pgno < numPages ? pgno : -1;
+    }
+
+    /**
+     * @return the free slots recorded for a page, capped at
+     *         {@link #MAX_RECORDED}, or -1 if the page is unknown
+     */
+    public synchronized int freeSlots(int pgno) {
+        if (!known.get(pgno))
+            return -1;
+        return (entries[pgno] & 0xFF) - 1;
+    }
+
+    /**
+     * Records the number of empty slots on a page, in memory only.
+     */
+    public synchronized void update(int pgno, int freeSlots) {
+        byte entry = (byte) (Math.min(freeSlots, MAX_RECORDED) + 1);
+        if (pgno >= entries.length)
+            entries = Arrays.copyOf(entries, Math.max(pgno + 1, entries.length * 2));
+        if (!known.get(pgno) || entries[pgno] != entry)
+            changed++;
+        entries[pgno] = entry;
+        known.set(pgno);
+        hasRoom.set(pgno, freeSlots > 0);
+    }
+
+    /**
+     * Writes the entries for the first numPages pages to the map's file, if
+     * any changed since the last save. Does nothing for a map kept in memory
+     * only. A failed write is reported and retried on the next save.
+     *
+     * @param numPages the heap file's current number of pages
+     */
+    public synchronized void save(int numPages) {
+        if (file == null || changed == 0)
+            return;
+        byte[] saved = Arrays.copyOf(entries, numPages);
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + numPages);
+        buf.putInt(numPages).putLong(checksum(saved)).put(saved).flip();
+        try {
+            if (channel == null || !channel.isOpen())
+                channel = new RandomAccessFile(file, "rw").getChannel();
+            long position = 0;
+            while (buf.hasRemaining())
+                position += channel.write(buf, position);
+            channel.truncate(HEADER_BYTES + numPages);
+            changed = 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Saves the map like {@link #save(int)}, but only once at least
+     * {@link #SAVE_THRESHOLD} entries have changed since the last save.
+     *
+     * @param numPages the heap file's current number of pages
+     */
+    public synchronized void saveIfDue(int numPages) {
+        if (changed >= SAVE_THRESHOLD)
+            save(numPages);
+    }
+
+    /**
+     * Saves the map and closes its file. The map stays usable; its file is
+     * opened again by the next save that has something to write.
+     *
+     * @param numPages the heap file's current number of pages
+     */
+    public synchronized void close(int numPages) {
+        save(numPages);
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        channel = null;
+    }
+
+    private static long checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    private void load(int numPages) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            if (in.length() != HEADER_BYTES + (long) numPages || in.readInt() != numPages)
+                return;
+            long crc = in.readLong();
+            byte[] data = new byte[numPages];
+            in.readFully(data);
+            if (checksum(data) != crc)
+                return;
+            entries = data;
+            for (int pgno = 0; pgno < entries.length; pgno++) {
+                if (entries[pgno] != 0) {
+                    known.set(pgno);
+                    hasRoom.set(pgno, (entries[pgno] & 0xFF) > 1);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
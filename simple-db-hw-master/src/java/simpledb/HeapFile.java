@@ -1,9 +1,11 @@
 package simpledb;
 
-import com.sun.xml.internal.messaging.saaj.util.ByteInputStream;
-
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -12,6 +14,14 @@ import java.util.*;
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
  * 
+ * <p>
+ * A HeapFile can be switched to memory-mapped reads with
+ * {@link #setMemoryMapped}, for read-mostly tables: the file is mapped in
+ * segments of {@link #MAP_SEGMENT_BYTES} and pages are decoded straight out
+ * of the mapping, so the operating system's page cache serves reads without
+ * a system call or a copy. Writes still go through writePage and the
+ * channel, and show through the mapping.
+ *
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
  *
@@ -19,6 +29,29 @@ import java.util.*;
 public class HeapFile implements DbFile {
     private File f;
     private TupleDesc td;
+    /** opened on first use and kept for the life of the file */
+    private FileChannel channel;
+    /** the number of pages, counted from the file's length on first use; -1 until then */
+    private volatile int numPages=-1;
+    /** where inserts look for room; opened on first use */
+    private FreeSpaceMap freeSpace;
+    /** whether the free-space map is saved next to the file */
+    private boolean freeSpaceSaved;
+
+    /** each thread reads and writes pages through its own buffer; HeapPage copies out of it */
+    private static final ThreadLocal<ByteBuffer> pageBuffers=new ThreadLocal<ByteBuffer>();
+
+    /** the most adjacent pages writePages sends to the file in one write */
+    private static final int MAX_WRITE_RUN=64;
+
+    /** pages a bulk load packs in memory before writing them out together */
+    public static final int BULK_LOAD_BATCH=64;
+
+    /** bytes of the file mapped at a time in memory-mapped mode */
+    public static final int MAP_SEGMENT_BYTES=1<<26;
+    private volatile boolean memoryMapped;
+    /** read-only mappings of the file by starting offset; the last one is remapped as the file grows */
+    private final ConcurrentHashMap<Long,MappedByteBuffer> segments=new ConcurrentHashMap<Long,MappedByteBuffer>();
 
 
     /**
@@ -73,15 +106,45 @@ public class HeapFile implements DbFile {
         return td;
     }
 
+    /**
+     * Switches memory-mapped reads on or off. Turning them off drops this
+     * file's mappings; the operating system unmaps them once they are
+     * garbage collected.
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped=memoryMapped;
+        if(!memoryMapped)
+            segments.clear();
+    }
+
+    /**
+     * @return true if pages are read through a memory mapping of the file
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
         try{
-            FileInputStream fileInputStream=new FileInputStream(f);
-            byte[] b=new byte[BufferPool.getPageSize()];
-            fileInputStream.skip(pid.getPageNumber()*BufferPool.getPageSize());
-            if(fileInputStream.read(b)!=-1){
-                return new HeapPage(new HeapPageId(pid.getTableId(),pid.getPageNumber()),b);
+            if(memoryMapped){
+                Page page=readMappedPage(pid);
+                if(page!=null)
+                    return page;
+            }
+            int pageSize=BufferPool.getPageSize();
+            ByteBuffer buffer=pageBuffer(pageSize);
+            long position=(long)pid.getPageNumber()*pageSize;
+            FileChannel ch=channel();
+            // a positional read leaves the channel's position alone, so readers need no lock
+            while(buffer.hasRemaining()){
+                if(ch.read(buffer,position+buffer.position())<0) break;
+            }
+            if(buffer.position()>0){
+                // the last page of a file may be short; the rest reads as zeroes
+                Arrays.fill(buffer.array(),buffer.position(),pageSize,(byte)0);
+                return new HeapPage(new HeapPageId(pid.getTableId(),pid.getPageNumber()),buffer.array());
             }
         }catch (IOException e){
             e.printStackTrace();
@@ -97,21 +160,214 @@ public class HeapFile implements DbFile {
         // not necessary for lab1
 //        RandomAccessFile可以指定位置读写文件,fileOutputStream只能追加或者覆盖
 
-        RandomAccessFile raf=new RandomAccessFile(f,"rw");
-        raf.seek(page.getId().getPageNumber()*BufferPool.getPageSize());//pageNumber是从0开始的
-        byte[] content=page.getPageData();
-        raf.write(content);
-        raf.close();
+        int pageSize=BufferPool.getPageSize();
+        ByteBuffer content=pageBuffer(pageSize);
+        serialize(page,content);
+        content.flip();
+        long position=(long)page.getId().getPageNumber()*pageSize;//pageNumber是从0开始的
+        FileChannel ch=channel();
+        while(content.hasRemaining())
+            position+=ch.write(content,position);
+        extendTo(page.getId().getPageNumber()+1);
+        written(page);
+        // single pages are often stolen ones; a commit's batch saves the map
+        freeSpace().saveIfDue(numPages());
         page.markDirty(false,null);
     }
 
     /**
-     * Returns the number of pages in this HeapFile.
+     * Writes the pages sorted by page number, serializing each run of
+     * adjacent pages into one buffer and handing it to the channel as one
+     * positional write.
+     */
+    @Override
+    public void writePages(List<Page> pages) throws IOException {
+        if(pages.isEmpty()) return;
+        List<Page> sorted=new ArrayList<Page>(pages);
+        Collections.sort(sorted, new Comparator<Page>() {
+            public int compare(Page a, Page b) {
+                return Integer.compare(a.getId().getPageNumber(), b.getId().getPageNumber());
+            }
+        });
+        FileChannel ch=channel();
+        int pageSize=BufferPool.getPageSize();
+        int start=0;
+        while(start<sorted.size()){
+            int first=sorted.get(start).getId().getPageNumber();
+            int next=first;
+            int end=start;
+            for(;end<sorted.size();end++){
+                int pgno=sorted.get(end).getId().getPageNumber();
+                if(pgno==next-1) continue;//the same page listed twice
+                if(pgno!=next || next-first==MAX_WRITE_RUN) break;
+                next++;
+            }
+            ByteBuffer run=pageBuffer((next-first)*pageSize);
+            for(int i=start;i<end;i++){
+                if(i==start || sorted.get(i).getId().getPageNumber()!=sorted.get(i-1).getId().getPageNumber())
+                    serialize(sorted.get(i),run);
+            }
+            run.flip();
+            long position=(long)first*pageSize;
+            while(run.hasRemaining())
+                position+=ch.write(run,position);
+            extendTo(next);
+            for(int i=start;i<end;i++){
+                written(sorted.get(i));
+                sorted.get(i).markDirty(false,null);
+            }
+            start=end;
+        }
+        freeSpace().save(numPages());
+    }
+
+    /**
+     * Records the free space of a page that has just been written, which is
+     * exact as of the write.
+     */
+    private void written(Page page) {
+        if(page instanceof HeapPage)
+            freeSpace().update(page.getId().getPageNumber(),((HeapPage) page).getNumEmptySlots());
+    }
+
+    private synchronized FreeSpaceMap freeSpace() {
+        if(freeSpace==null)
+            freeSpace=freeSpaceSaved ? new FreeSpaceMap(f,numPages()) : new FreeSpaceMap();
+        return freeSpace;
+    }
+
+    /**
+     * Chooses whether the free-space map is saved next to the file, so that
+     * inserts find room straight away after a restart, or kept in memory
+     * only, which is the default. Files the catalog loads from a schema are
+     * saved; scratch files are not, and leave nothing behind.
+     */
+    public synchronized void setFreeSpaceMapSaved(boolean saved) {
+        if(saved==freeSpaceSaved)
+            return;
+        if(freeSpace!=null)
+            freeSpace.close(numPages());
+        freeSpace=null;
+        freeSpaceSaved=saved;
+    }
+
+    /**
+     * Saves the free-space map and closes the file's channels and mappings.
+     * Must not be called while pages are being read or written; afterwards
+     * the HeapFile stays usable and opens them again on the next access.
+     */
+    public synchronized void close() throws IOException {
+        if(freeSpace!=null)
+            freeSpace.close(numPages());
+        segments.clear();
+        if(channel!=null)
+            channel.close();
+    }
+
+    private synchronized FileChannel channel() throws IOException {
+        if(channel==null || !channel.isOpen())
+            channel=new RandomAccessFile(f,"rw").getChannel();
+        return channel;
+    }
+
+    /**
+     * Returns this thread's page buffer, cleared and limited to the given
+     * number of bytes. The buffer is replaced when it is too small.
+     */
+    private static ByteBuffer pageBuffer(int bytes) {
+        ByteBuffer buffer=pageBuffers.get();
+        if(buffer==null || buffer.capacity()<bytes){
+            buffer=ByteBuffer.allocate(bytes);
+            pageBuffers.set(buffer);
+        }
+        buffer.clear();
+        buffer.limit(bytes);
+        return buffer;
+    }
+
+    /**
+     * Appends a page's bytes to a buffer, straight from a HeapPage without
+     * an intermediate array.
+     */
+    private static void serialize(Page page, ByteBuffer buf) {
+        if(page instanceof HeapPage)
+            ((HeapPage) page).writePageData(buf);
+        else
+            buf.put(page.getPageData());
+    }
+
+    /**
+     * Decodes a page straight out of the file's mapping.
+     *
+     * @return the page, or null if it is not entirely within the file, in
+     *         which case it is read through the channel
+     */
+    private Page readMappedPage(PageId pid) throws IOException {
+        int pageSize=BufferPool.getPageSize();
+        // segments hold whole pages, so no page straddles two mappings
+        long segmentBytes=Math.max(1,MAP_SEGMENT_BYTES/pageSize)*(long)pageSize;
+        long offset=(long)pid.getPageNumber()*pageSize;
+        long start=offset/segmentBytes*segmentBytes;
+        MappedByteBuffer segment=segment(start,segmentBytes,offset+pageSize);
+        if(segment==null)
+            return null;
+        ByteBuffer slice=segment.duplicate();
+        slice.position((int)(offset-start));
+        slice.limit((int)(offset-start)+pageSize);
+        return new HeapPage(new HeapPageId(pid.getTableId(),pid.getPageNumber()),slice.slice());
+    }
+
+    /**
+     * Returns the mapping of the segment starting at start, mapping it or
+     * extending it first if it does not reach end.
+     *
+     * @return the mapping, or null if the file ends before end
+     */
+    private MappedByteBuffer segment(long start, long segmentBytes, long end) throws IOException {
+        MappedByteBuffer segment=segments.get(start);
+        if(segment!=null && start+segment.capacity()>=end)
+            return segment;
+        synchronized (segments) {
+            segment=segments.get(start);
+            if(segment!=null && start+segment.capacity()>=end)
+                return segment;
+            FileChannel ch=channel();
+            // mapping past the end of a writable channel would grow the file
+            long size=Math.min(segmentBytes,ch.size()-start);
+            if(start+size<end)
+                return null;
+            segment=ch.map(FileChannel.MapMode.READ_ONLY,start,size);
+            segments.put(start,segment);
+            return segment;
+        }
+    }
+
+    /**
+     * Notes that the file now holds at least n pages.
+     */
+    private synchronized void extendTo(int n) {
+        // before the first count the file's length already includes the write
+        if(numPages>=0 && n>numPages)
+            numPages=n;
+    }
+
+    /**
+     * Returns the number of pages in this HeapFile. The count is taken from
+     * the file's length once and then kept up to date by writePage and
+     * writePages, so the file must only grow through this HeapFile.
      */
     public int numPages() {
         // some code goes here
          //insert完了要加入到磁盘文件f中
-        return (int)(f.length()%BufferPool.getPageSize()==0 ? f.length()/BufferPool.getPageSize() : f.length()/BufferPool.getPageSize()+1);
+        int n=numPages;
+        if(n<0){
+            synchronized (this) {
+                if(numPages<0)
+                    numPages=(int)(f.length()%BufferPool.getPageSize()==0 ? f.length()/BufferPool.getPageSize() : f.length()/BufferPool.getPageSize()+1);
+                n=numPages;
+            }
+        }
+        return n;
     }
 
     // see DbFile.java for javadocs
@@ -124,21 +380,29 @@ public class HeapFile implements DbFile {
         //返回的是修改的页
         //插入t是随便插的，插完之后改recordid即可
         ArrayList<Page> pages=new ArrayList<>();
-        for(int i=0;i<numPages();i++){
-            HeapPage heapPage=(HeapPage) Database.getBufferPool().getPage(tid,new HeapPageId(getId(),i),Permissions.READ_WRITE);
+        FreeSpaceMap fsm=freeSpace();
+        int pgno;
+        // the map sends us to a page it believes has room, or to one it has not seen yet
+        while((pgno=fsm.pageWithRoom(numPages()))>=0){
+            HeapPageId pid=new HeapPageId(getId(),pgno);
+            boolean held=Database.getBufferPool().holdsLock(tid,pid);
+            HeapPage heapPage=(HeapPage) Database.getBufferPool().getPage(tid,pid,Permissions.READ_WRITE);
 
             if(heapPage.getNumEmptySlots()==0){
-                Database.getBufferPool().releasePage(tid,heapPage.getId());
+                fsm.update(pgno,0);
+                if(!held)
+                    Database.getBufferPool().releasePage(tid,heapPage.getId());
                 continue;
             }
 
             heapPage.insertTuple(t);
             heapPage.markDirty(true,tid);
             heapPage.setVersion(heapPage.getVersion()+1);
+            fsm.update(pgno,heapPage.getNumEmptySlots());
             pages.add(heapPage);
             return pages;
         }
-        HeapPage newPage=new HeapPage(new HeapPageId(getId(),numPages()+1),HeapPage.createEmptyPageData());
+        HeapPage newPage=new HeapPage(new HeapPageId(getId(),numPages()),HeapPage.createEmptyPageData());
         newPage.insertTuple(t);
         newPage.markDirty(true,tid);
         newPage.setVersion(newPage.getVersion()+1);
@@ -159,43 +423,119 @@ public class HeapFile implements DbFile {
         HeapPage heapPage=(HeapPage) Database.getBufferPool().getPage(tid,t.getRecordId().getPageId(),Permissions.READ_WRITE);
         heapPage.deleteTuple(t);
         heapPage.markDirty(true,tid);
+        freeSpace().update(heapPage.getId().getPageNumber(),heapPage.getNumEmptySlots());
         pages.add(heapPage);
         return pages;   //删除tuple不用写入磁盘吗
     }
 
+    /**
+     * Appends a stream of tuples to the end of this file on behalf of tid.
+     * Instead of inserting them one at a time, the load takes an exclusive
+     * lock on the whole table, packs the tuples into full pages in memory,
+     * and writes them after the last page in sequential batches of
+     * {@link #BULK_LOAD_BATCH} pages, logging each page once.
+     * The tuples become visible when tid commits, and an abort empties the
+     * pages again. Free space already in the file is left for ordinary
+     * inserts.
+     *
+     * @param tid the transaction loading the tuples
+     * @param tuples the tuples to load; their record ids are set as they are placed
+     * @return the number of tuples loaded
+     * @throws DbException if a tuple does not match this file's TupleDesc
+     * @see BufferPool#appendPages
+     */
+    public int bulkLoad(TransactionId tid, Iterator<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool bufferPool=Database.getBufferPool();
+        bufferPool.lockTable(tid,getId(),Permissions.READ_WRITE);
+        int loaded=0;
+        int pgno=numPages();
+        List<Page> batch=new ArrayList<Page>(BULK_LOAD_BATCH);
+        HeapPage page=null;
+        while(tuples.hasNext()){
+            Tuple t=tuples.next();
+            if(page==null || page.getNumEmptySlots()==0){
+                if(page!=null)
+                    batch.add(page);
+                if(batch.size()==BULK_LOAD_BATCH){
+                    bufferPool.appendPages(tid,batch);
+                    batch.clear();
+                }
+                page=new HeapPage(new HeapPageId(getId(),pgno++),HeapPage.createEmptyPageData());
+            }
+            page.insertTuple(t);
+            loaded++;
+        }
+        if(page!=null)
+            batch.add(page);
+        bufferPool.appendPages(tid,batch);
+        return loaded;
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
+        return iterator(tid,null);
+    }
+
+    /**
+     * Returns an iterator over the tuples of this file that satisfy a
+     * predicate. Each page tests the predicate's field before building a
+     * tuple, so a selective scan decodes little more than the one field.
+     *
+     * @param predicate the predicate to apply, or null for every tuple
+     */
+    public DbFileIterator iterator(TransactionId tid, final Predicate predicate) {
         return new DbFileIterator() {
             BufferPool bufferPool=Database.getBufferPool();
+            BufferAccessStrategy strategy=BufferAccessStrategy.NORMAL;
             Boolean isOpen=false;
             HeapPage page;
             Iterator<Tuple> tuples;
             int pgno=0;
+            // the page being read is pinned so that it cannot be evicted under us
+            HeapPageId pinned;
             @Override
             public void open() throws DbException, TransactionAbortedException {
                 isOpen=true;
+                // a table that cannot fit in the pool anyway is scanned through a small ring of frames
+                if(numPages()>bufferPool.getNumPages())
+                    strategy=BufferAccessStrategy.newRing(BufferAccessStrategy.DEFAULT_RING_SIZE);
             }
 
             @Override
             public boolean hasNext() throws DbException, TransactionAbortedException {
                 if(!isOpen)return false;
                 if(tuples==null){
-                    page=(HeapPage) bufferPool.getPage(tid,new HeapPageId(getId(),pgno),Permissions.READ_ONLY);
-                    tuples=page.iterator();
+                    readPage(pgno);
                     pgno++;
                 }
                 if(tuples.hasNext())return true;
                 //tuple不是在连续的page上存储的
                 while(pgno<numPages()){
-                    page=(HeapPage) bufferPool.getPage(tid,new HeapPageId(getId(),pgno),Permissions.READ_ONLY);
-                    tuples=page.iterator();
+                    readPage(pgno);
                     pgno++;
                     if(tuples.hasNext())return true;
                 }
+                unpin();
                 return false;
             }
 
+            private void readPage(int pgno) throws DbException, TransactionAbortedException {
+                HeapPageId pid=new HeapPageId(getId(),pgno);
+                page=(HeapPage) bufferPool.pinPage(tid,pid,Permissions.READ_ONLY,strategy);
+                unpin();
+                pinned=pid;
+                tuples=page.iterator(predicate);
+            }
+
+            private void unpin() {
+                if(pinned!=null){
+                    bufferPool.unpinPage(tid,pinned);
+                    pinned=null;
+                }
+            }
+
             @Override
             public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
                 if(!isOpen || !hasNext())throw new NoSuchElementException();
@@ -204,12 +544,14 @@ public class HeapFile implements DbFile {
 
             @Override
             public void rewind() throws DbException, TransactionAbortedException {
+                unpin();
                 pgno=0;
                 tuples=null;//设置为null即可，不用重新让tuples里的cursor重新等于-1
             }
 
             @Override
             public void close() {
+                unpin();
                 isOpen=false;
                 pgno=0;tuples=null;
             }
@@ -2,11 +2,17 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
  *
+ * <p>
+ * Changes, serialization and the dirty flag synchronize on the page, so that
+ * BufferPool can write a page back while its transaction is still changing it
+ * and mark it clean only if what it wrote is what the page holds.
+ *
  * @see HeapFile
  * @see BufferPool
  *
@@ -17,12 +23,27 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte header[];
+    /**
+     * The page as it was read, from index 0. Never written to; a used slot
+     * whose tuple has not been replaced since is decoded from here each time
+     * it is read. Either a private copy, shared with the before image, or a
+     * read-only view of a file mapping.
+     */
+    private final ByteBuffer data;
+    /** the tuples inserted since the page was read, by slot */
     final Tuple tuples[];
     final int numSlots;
 
+    /**
+     * The before image, or null if it is the page as it stands; in that case
+     * it is captured on the first change to the page.
+     */
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
 
+    /** source for the zeroes written into empty slots and the padding */
+    private static final byte[] ZEROES = new byte[512];
+
     private boolean isDirty;
     private TransactionId tid;
 
@@ -53,28 +74,55 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, Database.getCatalog().getTupleDesc(id.getTableId()), Arrays.copyOf(data, BufferPool.getPageSize()));
+    }
+
+    /**
+     * Create a HeapPage from a buffer holding one page in the same format
+     * from its position on, such as a slice of a memory-mapped file. The
+     * tuples are decoded from the buffer in place, without copying the page,
+     * so its contents must not change while the page is in use other than
+     * by this page being written back; the buffer's position is not changed.
+     * A buffer holding less than a page is copied, the rest reading as
+     * zeroes.
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, Database.getCatalog().getTupleDesc(id.getTableId()), data.slice().asReadOnlyBuffer(), null);
+    }
+
+    /**
+     * Takes ownership of data, which must be a full page. Only the header is
+     * parsed here; the tuples stay in data until they are asked for.
+     */
+    private HeapPage(HeapPageId id, TupleDesc td, byte[] data) {
+        // the page as read is its own before image
+        this(id, td, ByteBuffer.wrap(data), data);
+    }
+
+    /**
+     * @param before the before image if it is data itself, or null to
+     *        capture it on the first change, as for a view of a mapping
+     *        that writing the page back would change
+     */
+    private HeapPage(HeapPageId id, TupleDesc td, ByteBuffer data, byte[] before) {
         this.pid = id;
-        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.td = td;
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        if (data.remaining() < BufferPool.getPageSize()) {
+            before = new byte[BufferPool.getPageSize()];
+            data.duplicate().get(before, 0, data.remaining());
+            data = ByteBuffer.wrap(before);
+        }
+        this.data = data;
 
-        // allocate and read the header slots of this page
+        // the header slots are copied out, so that the raw tuples are left
+        // as they were read whatever happens to the page afterwards
         header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
+        for (int i = 0; i < header.length; i++)
+            header[i] = data.get(i);
         tuples = new Tuple[numSlots];
 
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                {tuples[i] = readNextTuple(dis,i);}
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
-
-        setBeforeImage();
+        oldData = before;
     }
 
     /** Retrieve the number of tuples on this page.
@@ -99,26 +147,37 @@ public class HeapPage implements Page {
     
     /** Return a view of this page before it was modified
         -- used by recovery */
-    public HeapPage getBeforeImage(){
-        try {
+    public synchronized HeapPage getBeforeImage(){
             byte[] oldDataRef = null;
             synchronized(oldDataLock)
             {
+                if (oldData == null)
+                    oldData = getPageData();
                 oldDataRef = oldData;
             }
-            return new HeapPage(pid,oldDataRef);
-        } catch (IOException e) {
-            e.printStackTrace();
-            //should never happen -- we parsed it OK before!
-            System.exit(1);
-        }
-        return null;
+            return new HeapPage(pid,td,oldDataRef);
     }
     
+    /**
+     * Makes the page as it stands the before image. Nothing is serialized
+     * until the page next changes or the image is asked for.
+     */
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = null;
+        }
+    }
+
+    /**
+     * Captures the before image if the page is about to change for the first
+     * time since {@link #setBeforeImage}; called before every change.
+     */
+    private void beforeChange() {
+        synchronized(oldDataLock)
+        {
+            if (oldData == null)
+                oldData = getPageData();
         }
     }
 
@@ -132,37 +191,40 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Returns the tuple in a used slot, decoding it from the page as read
+     * unless it has been inserted since.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    private Tuple readTuple(int slotId) {
+        Tuple t = tuples[slotId];
+        if (t != null)
+            return t;
+        t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slotId));
+        int offset = slotOffset(slotId);
+        for (int j=0; j<td.numFields(); j++) {
+            Type type = td.getFieldType(j);
+            t.setField(j, type.parse(data, offset));
+            offset += type.getLen();
         }
+        return t;
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
-        }
+    private int slotOffset(int slotId) {
+        return header.length + slotId * td.getSize();
+    }
 
-        return t;
+    /**
+     * Returns one field of the tuple in a used slot, without building the
+     * rest of the tuple.
+     * @throws NoSuchElementException if the slot is empty
+     */
+    public Field getField(int slotId, int fieldIndex) {
+        if (!isSlotUsed(slotId))
+            throw new NoSuchElementException("slot " + slotId + " is empty");
+        Tuple t = tuples[slotId];
+        if (t != null)
+            return t.getField(fieldIndex);
+        return td.getFieldType(fieldIndex).parse(data, slotOffset(slotId) + td.getOffset(fieldIndex));
     }
 
     /**
@@ -174,67 +236,54 @@ public class HeapPage implements Page {
      * have it produce an identical HeapPage object.
      *
      * @see #HeapPage
+     * @see #writePageData
      * @return A byte array correspond to the bytes of this page.
      */
-    public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
+    public synchronized byte[] getPageData() {
+        byte[] pageData = new byte[BufferPool.getPageSize()];
+        writePageData(ByteBuffer.wrap(pageData));
+        return pageData;
+    }
 
+    /**
+     * Writes the bytes returned by {@link #getPageData} into a buffer at its
+     * position, advancing the position by one page. Slots unchanged since
+     * the page was read are copied across as they are.
+     *
+     * @param buf a buffer with at least a page remaining
+     */
+    public synchronized void writePageData(ByteBuffer buf) {
         // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
+        buf.put(header);
 
         // create the tuples
+        int tupleSize = td.getSize();
+        ByteBuffer raw = null;
         for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
             if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                putZeroes(buf, tupleSize);
+            } else if (tuples[i] == null) {
+                if (raw == null)
+                    raw = data.duplicate();
+                raw.limit(slotOffset(i) + tupleSize);
+                raw.position(slotOffset(i));
+                buf.put(raw);
+            } else {
+                for (int j=0; j<td.numFields(); j++)
+                    tuples[i].getField(j).serialize(buf);
             }
         }
 
         // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        putZeroes(buf, BufferPool.getPageSize() - (header.length + tupleSize * tuples.length));
+    }
 
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+    private static void putZeroes(ByteBuffer buf, int len) {
+        while (len > 0) {
+            int n = Math.min(len, ZEROES.length);
+            buf.put(ZEROES, 0, n);
+            len -= n;
         }
-
-        return baos.toByteArray();
     }
 
     /**
@@ -258,15 +307,17 @@ public class HeapPage implements Page {
      *         already empty.
      * @param t The tuple to delete
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
         HeapPageId tpid=(HeapPageId) t.getRecordId().getPageId();
         if(!tpid.equals(pid))throw new DbException("The tuple is not on the HeapPage");
         int tuplenumber;
         tuplenumber=t.getRecordId().getTupleNumber();
-       // if(!isSlotUsed(tuplenumber))throw new DbException("The tuple slot is already empty.");
+        if(!isSlotUsed(tuplenumber))throw new DbException("The tuple slot is already empty.");
+        beforeChange();
         markSlotUsed(tuplenumber,false);
+        tuples[tuplenumber]=null;
     }
 
     /**
@@ -276,11 +327,12 @@ public class HeapPage implements Page {
      *         is mismatch.
      * @param t The tuple to add.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
         if(!td.equals(t.getTupleDesc()))throw new DbException("The tupleDesc of tuple t and tuples of the heapPage is not same");
         if(getNumEmptySlots()==0)throw new DbException("The page is full");
+        beforeChange();
         for(int i=0;i<numSlots;i++){
             if(!isSlotUsed(i)){markSlotUsed(i,true);t.setRecordId(new RecordId(pid,i)); tuples[i]=t; break;}//插入tuple之后要更新recordid,因为tupleno变了
         }
@@ -291,7 +343,7 @@ public class HeapPage implements Page {
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
      */
-    public void markDirty(boolean dirty, TransactionId tid) {
+    public synchronized void markDirty(boolean dirty, TransactionId tid) {
         // some code goes here
 	// not necessary for lab1
         isDirty=dirty;
@@ -301,7 +353,7 @@ public class HeapPage implements Page {
     /**
      * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
      */
-    public TransactionId isDirty() {
+    public synchronized TransactionId isDirty() {
         // some code goes here
 	// Not necessary for lab1
         if(isDirty)return tid;
@@ -344,21 +396,46 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
+        return iterator(null);
+    }
+
+    /**
+     * Returns an iterator over the tuples on this page that satisfy a
+     * predicate. The predicate's field is decoded on its own first, so that
+     * tuples that fail it are never built.
+     *
+     * @param predicate the predicate to apply, or null for every tuple
+     */
+    public Iterator<Tuple> iterator(final Predicate predicate) {
         return new Iterator<Tuple>() {
-            int cursor=0;
+            int cursor=advance(0);
+
+            private int advance(int slot) {
+                for(;slot<numSlots;slot++){
+                    if(!isSlotUsed(slot))continue;
+                    if(predicate==null || predicate.filter(getField(slot,predicate.getField())))
+                        return slot;
+                }
+                return numSlots;
+            }
+
             @Override
             public boolean hasNext() {
-                if(cursor>numSlots-1)return false;
-                return tuples[cursor]!=null;
+                return cursor<numSlots;
             }
 
             @Override
             public Tuple next() {
-                if(!hasNext())return null;
-                return tuples[cursor++];
+                if(!hasNext())throw new NoSuchElementException();
+                Tuple t=readTuple(cursor);
+                cursor=advance(cursor+1);
+                return t;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
             }
         };
     }
-
 }
-
@@ -0,0 +1,152 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum, SIGMOD '93). The victim is
+ * the page whose K-th most recent reference lies furthest in the past. Pages
+ * referenced fewer than K times have an infinite backward K-distance and are
+ * evicted first, least recently used first, which keeps a page touched once by
+ * a scan from displacing pages that are used over and over.
+ * <p>
+ * Pages with at least K references are ordered by the logical time of their
+ * K-th most recent reference, so updating a page costs O(log n) and picking a
+ * victim only looks at pages the BufferPool refuses to evict plus one.
+ * <p>
+ * Pages added cold are kept apart and evicted before anything else until
+ * they are referenced a second time.
+ */
+public class LRUKReplacementPolicy implements ReplacementPolicy {
+
+    /** The K used by {@link #LRUKReplacementPolicy()}. */
+    public static final int DEFAULT_K = 2;
+
+    /** Creates a new LRU-K policy with K = {@link #DEFAULT_K} for each shard. */
+    public static final Factory FACTORY = new Factory() {
+        public ReplacementPolicy create() {
+            return new LRUKReplacementPolicy();
+        }
+    };
+
+    /** Access times of one page, most recent first. */
+    private static class History {
+        final long[] times;
+        int count;
+
+        History(int k) {
+            times = new long[k];
+        }
+
+        void record(long now) {
+            System.arraycopy(times, 0, times, 1, times.length - 1);
+            times[0] = now;
+            if (count < times.length)
+                count++;
+        }
+
+        boolean full() {
+            return count == times.length;
+        }
+
+        long kthTime() {
+            return times[times.length - 1];
+        }
+    }
+
+    private final int k;
+    private long clock = 0;
+    private final Map<PageId, History> histories = new HashMap<PageId, History>();
+    /** pages with fewer than k references, least recently used first */
+    private final LinkedHashMap<PageId, History> young = new LinkedHashMap<PageId, History>();
+    /** pages added cold and not referenced since, oldest first */
+    private final LinkedHashMap<PageId, History> cold = new LinkedHashMap<PageId, History>();
+    /** pages with k references keyed by the time of the k-th most recent one */
+    private final TreeMap<Long, PageId> mature = new TreeMap<Long, PageId>();
+
+    /**
+     * Creates an LRU-K policy with K = {@link #DEFAULT_K}.
+     */
+    public LRUKReplacementPolicy() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * @param k the number of past references considered for each page; must be at least 1
+     */
+    public LRUKReplacementPolicy(int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("k must be at least 1");
+        this.k = k;
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        if (histories.containsKey(pid)) {
+            pageAccessed(pid);
+            return;
+        }
+        History h = new History(k);
+        histories.put(pid, h);
+        reference(pid, h);
+    }
+
+    public synchronized void pageAddedCold(PageId pid) {
+        if (histories.containsKey(pid))
+            return;
+        History h = new History(k);
+        histories.put(pid, h);
+        h.record(clock++);
+        if (h.full())
+            mature.put(h.kthTime(), pid);
+        else
+            cold.put(pid, h);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        History h = histories.get(pid);
+        if (h == null)
+            return;
+        unlink(pid, h);
+        reference(pid, h);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        History h = histories.remove(pid);
+        if (h == null)
+            return;
+        unlink(pid, h);
+    }
+
+    public synchronized PageId chooseVictim(Evictable evictable) {
+        for (PageId pid : cold.keySet()) {
+            if (evictable.canEvict(pid))
+                return pid;
+        }
+        for (PageId pid : young.keySet()) {
+            if (evictable.canEvict(pid))
+                return pid;
+        }
+        for (PageId pid : mature.values()) {
+            if (evictable.canEvict(pid))
+                return pid;
+        }
+        return null;
+    }
+
+    private void unlink(PageId pid, History h) {
+        if (h.full())
+            mature.remove(h.kthTime());
+        else if (cold.remove(pid) == null)
+            young.remove(pid);
+    }
+
+    private void reference(PageId pid, History h) {
+        h.record(clock++);
+        if (h.full())
+            mature.put(h.kthTime(), pid);
+        else
+            young.put(pid, h);
+    }
+}
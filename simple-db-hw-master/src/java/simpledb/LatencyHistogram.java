@@ -0,0 +1,102 @@
+package simpledb;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram counts durations in power-of-two microsecond buckets:
+ * bucket 0 holds everything under 1us, and bucket i durations in
+ * [2^(i-1), 2^i) microseconds. Every bucket is a {@link LongAdder}, so
+ * threads recording at the same time do not contend on a shared counter and
+ * recording can sit on hot paths.
+ */
+public class LatencyHistogram {
+
+    /** the last bucket also collects everything longer than about 35 minutes */
+    public static final int NUM_BUCKETS = 32;
+
+    private final LongAdder[] buckets = new LongAdder[NUM_BUCKETS];
+    private final LongAdder totalNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < NUM_BUCKETS; i++)
+            buckets[i] = new LongAdder();
+    }
+
+    /**
+     * Records one duration.
+     *
+     * @param nanos the duration in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = micros == 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+        buckets[Math.min(bucket, NUM_BUCKETS - 1)].increment();
+        totalNanos.add(nanos);
+    }
+
+    /**
+     * @return a copy of the current counts
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++)
+            counts[i] = buckets[i].sum();
+        return new Snapshot(counts, totalNanos.sum());
+    }
+
+    /**
+     * The counts of a histogram at one point in time.
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long totalNanos;
+
+        Snapshot(long[] counts, long totalNanos) {
+            long n = 0;
+            for (long c : counts)
+                n += c;
+            this.counts = counts;
+            this.count = n;
+            this.totalNanos = totalNanos;
+        }
+
+        /** @return the number of durations recorded */
+        public long getCount() {
+            return count;
+        }
+
+        /** @return the sum of all durations recorded, in nanoseconds */
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        /** @return the mean duration in microseconds, or 0 if nothing was recorded */
+        public double getMeanMicros() {
+            return count == 0 ? 0 : totalNanos / 1000.0 / count;
+        }
+
+        /**
+         * @param fraction between 0 and 1, e.g. 0.99
+         * @return the upper bound in microseconds of the bucket holding the
+         *         given quantile, or 0 if nothing was recorded
+         */
+        public long getPercentileMicros(double fraction) {
+            if (count == 0)
+                return 0;
+            long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return 1L << i;
+            }
+            return 1L << (counts.length - 1);
+        }
+
+        /** @return the count in each bucket */
+        public long[] getCounts() {
+            return counts.clone();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package simpledb;
+
+/**
+ * The modes of the multi-granularity locks {@link TransactionLock} grants on
+ * tables and pages. S and X are ordinary shared and exclusive locks;
+ * IS and IX announce that the holder has, or is about to take, S or X locks
+ * on parts of the locked object; SIX is S on the whole object plus IX, for a
+ * transaction that reads all of a table and updates some of it.
+ */
+public enum LockMode {
+    IS, IX, S, SIX, X;
+
+    private static final boolean[][] COMPATIBLE = {
+        //          IS     IX     S      SIX    X
+        /* IS  */ { true,  true,  true,  true,  false },
+        /* IX  */ { true,  true,  false, false, false },
+        /* S   */ { true,  false, true,  false, false },
+        /* SIX */ { true,  false, false, false, false },
+        /* X   */ { false, false, false, false, false },
+    };
+
+    /**
+     * @return S for READ_ONLY and X for READ_WRITE
+     */
+    public static LockMode of(Permissions perm) {
+        return perm == Permissions.READ_WRITE ? X : S;
+    }
+
+    /**
+     * @return true if two transactions may hold this mode and other on the
+     *         same object at once
+     */
+    public boolean isCompatibleWith(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /**
+     * @return true if holding this mode grants everything other does
+     */
+    public boolean covers(LockMode other) {
+        switch (other) {
+        case IS:
+            return true;
+        case IX:
+            return this == IX || this == SIX || this == X;
+        case S:
+            return this == S || this == SIX || this == X;
+        case SIX:
+            return this == SIX || this == X;
+        default:
+            return this == X;
+        }
+    }
+
+    /**
+     * @return the weakest mode that grants both this and other, which is what
+     *         a holder of this mode converts to when it asks for other
+     */
+    public LockMode combine(LockMode other) {
+        if (covers(other))
+            return this;
+        if (other.covers(this))
+            return other;
+        // S with IX in either order
+        return SIX;
+    }
+
+    /**
+     * @return the mode to take on the parent of an object locked in this mode
+     */
+    public LockMode intention() {
+        return this == S || this == IS ? IS : IX;
+    }
+}
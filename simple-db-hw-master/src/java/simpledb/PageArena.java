@@ -0,0 +1,132 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * PageArena is a fixed number of page-sized frames carved out of direct
+ * (off-heap) ByteBuffers that are allocated once, up front. The BufferPool
+ * keeps the raw bytes of clean pages here instead of holding decoded Page
+ * objects, so the garbage collector never sees the cached data and pools of
+ * several gigabytes need no GC tuning.
+ * <p>
+ * A single direct buffer cannot exceed 2GB, so large arenas are split into
+ * chunks holding a whole number of frames each. An arena never changes size;
+ * a resized BufferPool copies its pages into a new one.
+ * <p>
+ * Not thread safe: each BufferPool shard owns one arena and only touches it
+ * while holding the shard's monitor.
+ */
+public class PageArena {
+
+    private final int frameSize;
+    private final int framesPerChunk;
+    private final ByteBuffer[] chunks;
+    private final int[] freeFrames;
+    private int numFree;
+
+    /**
+     * Allocates an arena.
+     *
+     * @param numFrames the number of frames to allocate
+     * @param frameSize the size of each frame in bytes, normally
+     *        {@link BufferPool#getPageSize()}
+     */
+    public PageArena(int numFrames, int frameSize) {
+        this.frameSize = frameSize;
+        this.framesPerChunk = Math.max(1, Integer.MAX_VALUE / frameSize);
+        int numChunks = (numFrames + framesPerChunk - 1) / framesPerChunk;
+        this.chunks = new ByteBuffer[numChunks];
+        for (int i = 0; i < numChunks; i++) {
+            int frames = Math.min(framesPerChunk, numFrames - i * framesPerChunk);
+            chunks[i] = ByteBuffer.allocateDirect(frames * frameSize);
+        }
+        this.freeFrames = new int[numFrames];
+        // hand out low frame numbers first
+        for (int i = 0; i < numFrames; i++)
+            freeFrames[i] = numFrames - 1 - i;
+        this.numFree = numFrames;
+    }
+
+    /**
+     * @return the number of bytes in each frame
+     */
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    /**
+     * @return the total number of frames
+     */
+    public int capacity() {
+        return freeFrames.length;
+    }
+
+    /**
+     * @return the number of frames not currently allocated
+     */
+    public int numFreeFrames() {
+        return numFree;
+    }
+
+    /**
+     * Reserves a frame.
+     *
+     * @return the frame number, or -1 if every frame is in use
+     */
+    public int allocate() {
+        if (numFree == 0)
+            return -1;
+        return freeFrames[--numFree];
+    }
+
+    /**
+     * Returns a frame obtained from {@link #allocate()} to the arena.
+     */
+    public void release(int frame) {
+        freeFrames[numFree++] = frame;
+    }
+
+    /**
+     * Copies a page image into a frame.
+     *
+     * @param frame a frame obtained from {@link #allocate()}
+     * @param data exactly {@link #getFrameSize()} bytes
+     */
+    public void write(int frame, byte[] data) {
+        if (data.length != frameSize)
+            throw new IllegalArgumentException("page image is " + data.length
+                    + " bytes, frames are " + frameSize);
+        ByteBuffer chunk = chunks[frame / framesPerChunk];
+        chunk.position((frame % framesPerChunk) * frameSize);
+        chunk.put(data);
+    }
+
+    /**
+     * Serializes a HeapPage straight into a frame.
+     *
+     * @param frame a frame obtained from {@link #allocate()}
+     * @param page a page of exactly {@link #getFrameSize()} bytes
+     */
+    public void write(int frame, HeapPage page) {
+        if (BufferPool.getPageSize() != frameSize)
+            throw new IllegalArgumentException("pages are " + BufferPool.getPageSize()
+                    + " bytes, frames are " + frameSize);
+        ByteBuffer chunk = chunks[frame / framesPerChunk];
+        chunk.position((frame % framesPerChunk) * frameSize);
+        page.writePageData(chunk);
+    }
+
+    /**
+     * Copies the contents of a frame onto the heap.
+     *
+     * @param frame a frame obtained from {@link #allocate()}
+     * @return a new array holding the frame's bytes
+     */
+    public byte[] read(int frame) {
+        byte[] data = new byte[frameSize];
+        ByteBuffer chunk = chunks[frame / framesPerChunk];
+        chunk.position((frame % framesPerChunk) * frameSize);
+        chunk.get(data);
+        return data;
+    }
+}
@@ -105,7 +105,19 @@ public class Predicate implements Serializable {
     public boolean filter(Tuple t) {
         // some code goes here
 //        return t.getField(field).compare(op,operand);
-        return operand.compare(op,t.getField(field));
+        return filter(t.getField(field));
+    }
+
+    /**
+     * Makes the comparison {@link #filter(Tuple)} makes, given the value of
+     * the tuple's field, so that a page can test a tuple before building it.
+     *
+     * @param f
+     *            the value of the field number specified in the constructor
+     * @return true if the comparison is true, false otherwise.
+     */
+    public boolean filter(Field f) {
+        return operand.compare(op,f);
     }
 
     /**
@@ -0,0 +1,160 @@
+package simpledb;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * PriorityReplacementPolicy splits a shard into a general segment and a
+ * protected segment, each managed by its own underlying policy. Pages the
+ * {@link PageClassifier} marks as protected (by default the root pointer,
+ * header and internal pages of B+ trees) go to the protected segment, and
+ * victims are only taken from it once nothing in the general segment can be
+ * evicted. A scan can therefore flush every leaf and heap page from the pool
+ * without touching the upper levels of an index.
+ * <p>
+ * The protected segment holds at most {@link #getProtectedCapacity()} pages.
+ * When it overflows, its own policy picks the page to move down into the
+ * general segment, where it competes with every other page; it is promoted
+ * again the next time it is used.
+ */
+public class PriorityReplacementPolicy implements ReplacementPolicy {
+
+    /**
+     * Decides which pages deserve the protected segment.
+     */
+    public interface PageClassifier {
+        public boolean isProtected(PageId pid);
+    }
+
+    /** Protects every B+ tree page except leaves. */
+    public static final PageClassifier BTREE_UPPER_LEVELS = new PageClassifier() {
+        public boolean isProtected(PageId pid) {
+            return pid instanceof BTreePageId
+                    && ((BTreePageId) pid).pgcateg() != BTreePageId.LEAF;
+        }
+    };
+
+    private final ReplacementPolicy general;
+    private final ReplacementPolicy protectedSegment;
+    private final PageClassifier classifier;
+    private final Set<PageId> protectedPages = new HashSet<PageId>();
+    /** pages the classifier protects that currently sit in the general segment */
+    private final Set<PageId> demoted = new HashSet<PageId>();
+    private int protectedCapacity;
+
+    /**
+     * @param general the policy for ordinary pages
+     * @param protectedSegment the policy for protected pages
+     * @param classifier picks the protected pages
+     * @param protectedCapacity the most pages the protected segment holds
+     */
+    public PriorityReplacementPolicy(ReplacementPolicy general, ReplacementPolicy protectedSegment,
+            PageClassifier classifier, int protectedCapacity) {
+        this.general = general;
+        this.protectedSegment = protectedSegment;
+        this.classifier = classifier;
+        this.protectedCapacity = protectedCapacity;
+    }
+
+    /**
+     * @return the most pages the protected segment holds
+     */
+    public synchronized int getProtectedCapacity() {
+        return protectedCapacity;
+    }
+
+    /**
+     * Changes the size of the protected segment, moving pages down to the
+     * general segment if it shrinks below its current size.
+     */
+    public synchronized void setProtectedCapacity(int protectedCapacity) {
+        this.protectedCapacity = protectedCapacity;
+        while (protectedPages.size() > protectedCapacity && demote(null))
+            ;
+    }
+
+    /**
+     * @return the number of pages currently in the protected segment
+     */
+    public synchronized int numProtected() {
+        return protectedPages.size();
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        if (protectedPages.contains(pid))
+            protectedSegment.pageAccessed(pid);
+        else if (classifier.isProtected(pid) && protectedCapacity > 0)
+            promote(pid);
+        else
+            addGeneral(pid);
+    }
+
+    public synchronized void pageAddedCold(PageId pid) {
+        // the hint comes from scans; it does not apply to the pages we protect
+        if (classifier.isProtected(pid))
+            pageAdded(pid);
+        else
+            general.pageAddedCold(pid);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        if (protectedPages.contains(pid)) {
+            protectedSegment.pageAccessed(pid);
+        } else if (demoted.contains(pid) && protectedCapacity > 0) {
+            demoted.remove(pid);
+            general.pageRemoved(pid);
+            promote(pid);
+        } else {
+            general.pageAccessed(pid);
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        if (protectedPages.remove(pid)) {
+            protectedSegment.pageRemoved(pid);
+        } else {
+            demoted.remove(pid);
+            general.pageRemoved(pid);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Evictable evictable) {
+        PageId victim = general.chooseVictim(evictable);
+        if (victim == null)
+            victim = protectedSegment.chooseVictim(evictable);
+        return victim;
+    }
+
+    private void promote(PageId pid) {
+        protectedPages.add(pid);
+        protectedSegment.pageAdded(pid);
+        if (protectedPages.size() > protectedCapacity)
+            demote(pid);
+    }
+
+    /**
+     * Moves the protected segment's victim, other than keep, to the general
+     * segment.
+     *
+     * @return false if there was nothing to move
+     */
+    private boolean demote(final PageId keep) {
+        PageId victim = protectedSegment.chooseVictim(new Evictable() {
+            public boolean canEvict(PageId pid) {
+                return !pid.equals(keep);
+            }
+        });
+        if (victim == null)
+            return false;
+        protectedPages.remove(victim);
+        protectedSegment.pageRemoved(victim);
+        addGeneral(victim);
+        return true;
+    }
+
+    private void addGeneral(PageId pid) {
+        if (classifier.isProtected(pid))
+            demoted.add(pid);
+        general.pageAdded(pid);
+    }
+}
@@ -0,0 +1,160 @@
+package simpledb;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ReadAhead watches the pages a BufferPool hands out and, once a table is
+ * being read sequentially, loads the next few pages on a background thread so
+ * that the scan finds them already cached. Two patterns are recognized:
+ * <ul>
+ * <li>heap pages requested in increasing page number order, and
+ * <li>B+ tree leaf pages requested along their right-sibling chain.
+ * </ul>
+ * Prefetched pages are cached without taking any transaction locks; the scan
+ * still locks each page when it asks for it. They enter the replacement policy
+ * at its cold end, so pages that are never used are evicted first.
+ * <p>
+ * Read-ahead is off unless turned on with
+ * {@link BufferPool#setReadAheadWindow(int)}. All pools that use it share one
+ * small set of daemon I/O threads, started on first use.
+ */
+public class ReadAhead {
+
+    /** Number of consecutive sequential requests that starts read-ahead. */
+    public static final int SEQUENTIAL_THRESHOLD = 2;
+
+    private static final int IO_THREADS = 2;
+    private static ExecutorService ioPool;
+
+    /** Tracks the last page requested from one table. */
+    private static class Stream {
+        PageId last;
+        int runLength;
+        /** heap streams: highest page number already submitted */
+        int prefetchedTo = -1;
+        /** leaf streams: leaves still prefetched ahead of the scan */
+        int leavesAhead;
+        /** heap streams: the table's file, looked up on the first request */
+        DbFile file;
+    }
+
+    private final BufferPool pool;
+    private final int window;
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<Integer, Stream>();
+
+    /**
+     * @param pool the pool to warm
+     * @param window how many pages to keep loaded ahead of a sequential scan
+     */
+    public ReadAhead(BufferPool pool, int window) {
+        this.pool = pool;
+        this.window = window;
+    }
+
+    private static synchronized ExecutorService ioPool() {
+        if (ioPool == null) {
+            ioPool = Executors.newFixedThreadPool(IO_THREADS, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "simpledb-readahead-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return ioPool;
+    }
+
+    /**
+     * Called by the BufferPool every time it returns a page.
+     */
+    public void pageRequested(Page page) {
+        PageId pid = page.getId();
+        if (pid instanceof HeapPageId)
+            heapPageRequested(pid);
+        else if (page instanceof BTreeLeafPage)
+            leafPageRequested((BTreeLeafPage) page);
+    }
+
+    private Stream streamFor(int tableId) {
+        Stream s = streams.get(tableId);
+        if (s == null) {
+            streams.putIfAbsent(tableId, new Stream());
+            s = streams.get(tableId);
+        }
+        return s;
+    }
+
+    private void heapPageRequested(PageId pid) {
+        Stream s = streamFor(pid.getTableId());
+        int from, to;
+        synchronized (s) {
+            if (s.file == null)
+                s.file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            if (!(s.file instanceof HeapFile))
+                return;
+            int pgno = pid.getPageNumber();
+            if (s.last != null && pgno == s.last.getPageNumber() + 1) {
+                s.runLength++;
+            } else if (s.last == null || pgno != s.last.getPageNumber()) {
+                s.runLength = 1;
+                s.prefetchedTo = pgno;
+            }
+            s.last = pid;
+            if (s.runLength < SEQUENTIAL_THRESHOLD)
+                return;
+            from = Math.max(s.prefetchedTo, pgno) + 1;
+            to = Math.min(pgno + window, ((HeapFile) s.file).numPages() - 1);
+            if (from > to)
+                return;
+            s.prefetchedTo = to;
+        }
+        for (int i = from; i <= to; i++) {
+            final PageId next = new HeapPageId(pid.getTableId(), i);
+            ioPool().execute(new Runnable() {
+                public void run() {
+                    pool.prefetchPage(next);
+                }
+            });
+        }
+    }
+
+    private void leafPageRequested(BTreeLeafPage leaf) {
+        final BTreePageId right = leaf.getRightSiblingId();
+        Stream s = streamFor(leaf.getId().getTableId());
+        synchronized (s) {
+            BTreePageId left = leaf.getLeftSiblingId();
+            if (s.last != null && s.last.equals(left)) {
+                s.runLength++;
+                if (s.leavesAhead > 0)
+                    s.leavesAhead--;
+            } else if (!leaf.getId().equals(s.last)) {
+                s.runLength = 1;
+                s.leavesAhead = 0;
+            }
+            s.last = leaf.getId();
+            // refill once half the window has been consumed
+            if (s.runLength < SEQUENTIAL_THRESHOLD || right == null || s.leavesAhead > window / 2)
+                return;
+            s.leavesAhead = window;
+        }
+        ioPool().execute(new Runnable() {
+            public void run() {
+                // each leaf has to be read before we know its right sibling
+                BTreePageId next = right;
+                for (int i = 0; i < window && next != null; i++) {
+                    Page p = pool.prefetchPage(next);
+                    if (!(p instanceof BTreeLeafPage))
+                        return;
+                    next = ((BTreeLeafPage) p).getRightSiblingId();
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,74 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which cached page the BufferPool gives up when it
+ * needs a free frame. The BufferPool reports every page it caches, every hit
+ * on a cached page and every page it drops; the policy keeps whatever
+ * bookkeeping it needs to pick a victim without scanning the whole pool.
+ * <p>
+ * Implementations must be safe to call from several threads at once. Each
+ * BufferPool shard owns one policy instance, obtained from a {@link Factory}.
+ *
+ * @see BufferPool#BufferPool(int, int, ReplacementPolicy.Factory)
+ * @see ClockReplacementPolicy
+ * @see LRUKReplacementPolicy
+ * @see PriorityReplacementPolicy
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Creates a fresh policy for each BufferPool shard.
+     */
+    public interface Factory {
+        public ReplacementPolicy create();
+    }
+
+    /**
+     * Callback used by {@link #chooseVictim} to ask the BufferPool whether a
+     * candidate may be evicted right now (e.g. it is not dirty).
+     */
+    public interface Evictable {
+        public boolean canEvict(PageId pid);
+    }
+
+    /**
+     * Called when a page has been read into the pool.
+     *
+     * @param pid the id of the newly cached page
+     */
+    public void pageAdded(PageId pid);
+
+    /**
+     * Called instead of {@link #pageAdded} when a page was read by a scan
+     * that is not expected to touch it again. The page should be among the
+     * first candidates for eviction until it is accessed again.
+     *
+     * @param pid the id of the newly cached page
+     * @see BufferAccessStrategy
+     */
+    public void pageAddedCold(PageId pid);
+
+    /**
+     * Called on every request for a page that is already cached.
+     *
+     * @param pid the id of the page that was hit
+     */
+    public void pageAccessed(PageId pid);
+
+    /**
+     * Called when a page leaves the pool, either because it was evicted or
+     * because it was discarded.
+     *
+     * @param pid the id of the page that was removed
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Picks a page to evict. The returned page is still tracked by the policy;
+     * the BufferPool calls {@link #pageRemoved} once it has actually dropped it.
+     *
+     * @param evictable tells the policy which candidates it may return
+     * @return the id of the page to evict, or null if no tracked page may be evicted
+     */
+    public PageId chooseVictim(Evictable evictable);
+}
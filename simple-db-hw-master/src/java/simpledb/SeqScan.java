@@ -78,6 +78,19 @@ public class SeqScan implements OpIterator {
         this.tableAlias=tableAlias;
     }
 
+    /**
+     * Makes the scan return only the tuples that satisfy a predicate. Each
+     * page tests the predicate's field before building a tuple, so tuples
+     * that fail it are never decoded. {@link Filter} calls this on a SeqScan
+     * child when it opens; it must be called before the scan is opened.
+     *
+     * @param predicate the predicate to apply, or null for every tuple
+     */
+    void setPredicate(Predicate predicate) {
+        HeapFile heapFile=(HeapFile)(Database.getCatalog().getDatabaseFile(tableid));
+        this.dbFileIterator=heapFile.iterator(tid,predicate);
+    }
+
     public SeqScan(TransactionId tid, int tableId) {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
@@ -25,6 +25,16 @@ public class Transaction {
         }
     }
 
+    /**
+     * Start the transaction running as a read-only snapshot, which reads the
+     * database as of now without taking locks.
+     * @see BufferPool#beginSnapshot
+     */
+    public void startSnapshot() {
+        start();
+        Database.getBufferPool().beginSnapshot(tid);
+    }
+
     public TransactionId getId() {
         return tid;
     }
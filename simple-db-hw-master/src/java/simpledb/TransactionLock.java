@@ -0,0 +1,631 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * TransactionLock is the lock manager behind {@link BufferPool#getPage}. It
+ * locks two levels of objects, tables and pages, in the {@link LockMode}s
+ * of multi-granularity locking. A page request in
+ * {@link Permissions#READ_ONLY} takes IS on the table and S on the page;
+ * {@link Permissions#READ_WRITE} takes IX and X. Requests already covered by
+ * a lock on an ancestor are granted without touching the lock table, and a
+ * transaction asking for a stronger mode on an object it holds converts its
+ * lock (S and IX make SIX, for example).
+ * <p>
+ * Once a transaction holds {@link #getEscalationThreshold()} page locks on one
+ * table, its table lock is escalated to S (or X if it has written) and the
+ * page locks under it are dropped, so a scan holds one lock instead
+ * of one per page. Escalation never waits: if another transaction's lock is
+ * in the way the page locks are kept and escalation is tried again after
+ * another threshold's worth of pages.
+ * <p>
+ * The lock table is split into stripes by the hash of the locked object, and
+ * each object's lock is a word counting the holders of each mode. A request
+ * that is compatible with the current holders of an object nobody is waiting
+ * for is granted with a compare-and-set on that word, without taking any
+ * monitor, so transactions reading disjoint pages (or the same page) never
+ * queue on each other. Waiting happens under the monitor of the object's
+ * stripe. Every transaction also keeps the list of locks it holds, so
+ * checking a lock is a map lookup and releasing all of them costs time in the
+ * number held, not in the size of the table.
+ * <p>
+ * Deadlocks are detected, not timed out. While a transaction waits, the lock
+ * manager keeps an edge in a wait-for graph from it to every transaction
+ * holding a conflicting lock. Each time a transaction starts or resumes
+ * waiting, the graph is searched for a cycle through it: any new cycle must
+ * pass through the new edges. If there is one, the youngest transaction on it
+ * (the one with the highest {@link TransactionId#getId()}, which has done the
+ * least work) is aborted at once with a {@link TransactionAbortedException};
+ * if that is not the requester, the victim is woken from its own wait.
+ * <p>
+ * Locks are held until the BufferPool releases them, normally when the
+ * transaction completes.
+ */
+public class TransactionLock {
+
+    private static final TransactionLock INSTANCE = new TransactionLock();
+
+    /**
+     * @return the lock manager shared by the whole database
+     */
+    public static TransactionLock getTransactionLock() {
+        return INSTANCE;
+    }
+
+    /** Default number of page locks on one table that triggers escalation. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1024;
+
+    /** number of partitions of the lock table; a power of two */
+    private static final int STRIPES = 64;
+
+    /**
+     * Bits per mode in a lock word. An object can have at most 4095 holders
+     * of one mode at once; further requests for that mode wait until one of
+     * them lets go.
+     */
+    private static final int FIELD_BITS = 12;
+    private static final long FIELD_MASK = (1L << FIELD_BITS) - 1;
+    /** lock word of an entry that has been dropped from the table */
+    private static final long REMOVED = Long.MIN_VALUE;
+    /** for each mode, the fields of the lock word that must be zero to grant it */
+    private static final long[] CONFLICTS = new long[LockMode.values().length];
+    /** the fields of the modes that let their holder change the object */
+    private static final long WRITE_FIELDS = (FIELD_MASK << (LockMode.IX.ordinal() * FIELD_BITS))
+            | (FIELD_MASK << (LockMode.SIX.ordinal() * FIELD_BITS))
+            | (FIELD_MASK << (LockMode.X.ordinal() * FIELD_BITS));
+
+    static {
+        for (LockMode want : LockMode.values()) {
+            for (LockMode held : LockMode.values()) {
+                if (!want.isCompatibleWith(held))
+                    CONFLICTS[want.ordinal()] |= FIELD_MASK << (held.ordinal() * FIELD_BITS);
+            }
+        }
+    }
+
+    /** The key under which a whole table is locked. */
+    private static final class TableKey {
+        final int tableId;
+
+        TableKey(int tableId) {
+            this.tableId = tableId;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+        }
+
+        public int hashCode() {
+            return tableId * 31 + 17;
+        }
+    }
+
+    /** The lock on one table or page. */
+    private static class ObjectLock {
+        /** the number of holders of each mode, FIELD_BITS per mode, or REMOVED */
+        final AtomicLong word = new AtomicLong();
+        /**
+         * the holders, for the wait-for graph; a transaction records its new
+         * mode here before it is counted in word, so no holder is ever missing
+         */
+        final Map<TransactionId, LockMode> holders = new ConcurrentHashMap<TransactionId, LockMode>();
+        /** requests blocked on this object; written only under the stripe's monitor */
+        volatile int waiters;
+    }
+
+    /** One partition of the lock table, and the monitor its waiters block on. */
+    private static class Stripe {
+        final ConcurrentHashMap<Object, ObjectLock> locks = new ConcurrentHashMap<Object, ObjectLock>();
+    }
+
+    /** The locks one transaction holds. */
+    private static class Held {
+        final Map<Object, LockMode> locks = new ConcurrentHashMap<Object, LockMode>();
+        /** page locks per table id, for escalation; guarded by this */
+        final Map<Integer, TableCount> tables = new HashMap<Integer, TableCount>();
+    }
+
+    private static class TableCount {
+        int pages;
+        int nextEscalation;
+    }
+
+    /** A blocked request, as seen by deadlock detection. */
+    private static class Waiter {
+        final Set<TransactionId> blockers;
+        final Stripe stripe;
+
+        Waiter(Set<TransactionId> blockers, Stripe stripe) {
+            this.blockers = blockers;
+            this.stripe = stripe;
+        }
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final ConcurrentHashMap<TransactionId, Held> held = new ConcurrentHashMap<TransactionId, Held>();
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+
+    /** guards waitsFor and victims; always taken after a stripe, never before */
+    private final Object graph = new Object();
+    /** for each waiting transaction, the transactions it waits for */
+    private final Map<TransactionId, Waiter> waitsFor = new HashMap<TransactionId, Waiter>();
+    /** waiting transactions chosen as deadlock victims by another transaction */
+    private final Set<TransactionId> victims = new HashSet<TransactionId>();
+
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder deadlocks = new LongAdder();
+    private final LongAdder escalations = new LongAdder();
+    private final LatencyHistogram waitTimes = new LatencyHistogram();
+
+    TransactionLock() {
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe();
+    }
+
+    /**
+     * Acquires a lock on pid for tid, and the matching intention lock on its
+     * table, blocking while another transaction holds a conflicting lock.
+     * Does nothing if tid is null.
+     *
+     * @param pid the page to lock
+     * @param tid the transaction that wants the lock
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive one
+     * @throws TransactionAbortedException if waiting would deadlock and tid
+     *         was chosen as the victim
+     */
+    public void getLock(PageId pid, TransactionId tid, Permissions perm)
+            throws TransactionAbortedException {
+        if (tid == null)
+            return;
+        Held mine = heldBy(tid);
+        LockMode want = LockMode.of(perm);
+        TableKey table = new TableKey(pid.getTableId());
+        if (covered(mine, table, want) || covered(mine, pid, want))
+            return;
+        lock(mine, tid, table, want.intention());
+        if (lock(mine, tid, pid, want))
+            pageAdded(mine, tid, table);
+    }
+
+    /**
+     * Acquires a lock on a whole table for tid, dropping the page locks it
+     * makes redundant. Does nothing if tid is null.
+     *
+     * @param tableId the table to lock
+     * @param tid the transaction that wants the lock
+     * @param perm READ_ONLY for S, READ_WRITE for X
+     * @throws TransactionAbortedException if waiting would deadlock and tid
+     *         was chosen as the victim
+     */
+    public void getTableLock(int tableId, TransactionId tid, Permissions perm)
+            throws TransactionAbortedException {
+        if (tid == null)
+            return;
+        Held mine = heldBy(tid);
+        TableKey table = new TableKey(tableId);
+        lock(mine, tid, table, LockMode.of(perm));
+        releaseCovered(mine, tid, table);
+    }
+
+    /**
+     * Releases whatever lock tid holds on pid and wakes up waiters. The lock on
+     * the page's table is kept.
+     */
+    public void releasePage(TransactionId tid, PageId pid) {
+        if (tid == null)
+            return;
+        Held mine = held.get(tid);
+        LockMode mode = mine == null ? null : mine.locks.remove(pid);
+        if (mode == null)
+            return;
+        pageRemoved(mine, pid.getTableId());
+        release(tid, pid, mode);
+    }
+
+    /**
+     * Releases every lock tid holds.
+     */
+    public void releaseAll(TransactionId tid) {
+        if (tid == null)
+            return;
+        Held mine = held.remove(tid);
+        if (mine == null)
+            return;
+        for (Map.Entry<Object, LockMode> e : mine.locks.entrySet())
+            release(tid, e.getKey(), e.getValue());
+    }
+
+    /**
+     * @return true if tid holds a shared or exclusive lock on pid, directly
+     *         or through a lock on its table
+     */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        if (tid == null)
+            return false;
+        Held mine = held.get(tid);
+        return mine != null && (covered(mine, new TableKey(pid.getTableId()), LockMode.S)
+                || covered(mine, pid, LockMode.S));
+    }
+
+    /**
+     * Tells optimistic readers, which take no locks, whether a page may be
+     * changing under them: whether a transaction other than tid holds it in
+     * IX, SIX or X mode, or holds its whole table in X mode. Takes no monitor.
+     */
+    public boolean isWriteLockedByOther(PageId pid, TransactionId tid) {
+        return writtenByOther(pid, tid, WRITE_FIELDS)
+                || writtenByOther(new TableKey(pid.getTableId()), tid, FIELD_MASK << (LockMode.X.ordinal() * FIELD_BITS));
+    }
+
+    private boolean writtenByOther(Object key, TransactionId tid, long fields) {
+        ObjectLock lock = stripeFor(key).locks.get(key);
+        if (lock == null || (lock.word.get() & fields) == 0)
+            return false;
+        for (Map.Entry<TransactionId, LockMode> e : lock.holders.entrySet()) {
+            if (!e.getKey().equals(tid) && (fields & (FIELD_MASK << (e.getValue().ordinal() * FIELD_BITS))) != 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the mode tid holds on a table, or null if it holds none
+     */
+    public LockMode getTableMode(TransactionId tid, int tableId) {
+        Held mine = tid == null ? null : held.get(tid);
+        return mine == null ? null : mine.locks.get(new TableKey(tableId));
+    }
+
+    /**
+     * @return how many page locks on one table a transaction may hold before
+     *         they are escalated to a table lock
+     */
+    public int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    /**
+     * Sets how many page locks on one table a transaction may hold before
+     * they are escalated to a table lock.
+     */
+    public void setEscalationThreshold(int escalationThreshold) {
+        if (escalationThreshold < 1)
+            throw new IllegalArgumentException("escalationThreshold must be positive");
+        this.escalationThreshold = escalationThreshold;
+    }
+
+    /**
+     * Forgets every lock and restores the default escalation threshold. Only
+     * for tests that throw away the whole database state between cases.
+     */
+    public void reset() {
+        synchronized (graph) {
+            victims.addAll(waitsFor.keySet());
+        }
+        held.clear();
+        escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.locks.clear();
+                stripe.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return how many lock requests had to wait
+     */
+    public long getWaits() {
+        return waits.sum();
+    }
+
+    /**
+     * @return how many deadlocks were detected and broken
+     */
+    public long getDeadlocks() {
+        return deadlocks.sum();
+    }
+
+    /**
+     * @return how many times page locks were escalated to a table lock
+     */
+    public long getEscalations() {
+        return escalations.sum();
+    }
+
+    /**
+     * @return how long requests that had to wait waited, including those
+     *         that ended in an abort
+     */
+    public LatencyHistogram.Snapshot getWaitTimes() {
+        return waitTimes.snapshot();
+    }
+
+    private Stripe stripeFor(Object key) {
+        int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    private Held heldBy(TransactionId tid) {
+        Held mine = held.get(tid);
+        if (mine == null) {
+            mine = new Held();
+            Held raced = held.putIfAbsent(tid, mine);
+            if (raced != null)
+                mine = raced;
+        }
+        return mine;
+    }
+
+    private static boolean covered(Held mine, Object key, LockMode want) {
+        LockMode have = mine.locks.get(key);
+        return have != null && have.covers(want);
+    }
+
+    private static int tableOf(Object key) {
+        if (key instanceof PageId)
+            return ((PageId) key).getTableId();
+        return ((TableKey) key).tableId;
+    }
+
+    /**
+     * Makes sure tid holds key in a mode that covers want, converting the
+     * mode it holds if there is one.
+     *
+     * @return true if tid did not hold key before
+     */
+    private boolean lock(Held mine, TransactionId tid, Object key, LockMode want)
+            throws TransactionAbortedException {
+        LockMode have = mine.locks.get(key);
+        if (have != null && have.covers(want))
+            return false;
+        LockMode target = have == null ? want : have.combine(want);
+        Stripe stripe = stripeFor(key);
+        // requests already waiting go first
+        ObjectLock lock = stripe.locks.get(key);
+        if (lock == null || lock.waiters != 0 || !tryGrant(lock, tid, have, target))
+            acquire(stripe, key, tid, have, target);
+        mine.locks.put(key, target);
+        return have == null;
+    }
+
+    /**
+     * Counts a new page lock of tid's on table, and escalates to a table lock
+     * once there are enough.
+     */
+    private void pageAdded(Held mine, TransactionId tid, TableKey table) {
+        synchronized (mine) {
+            TableCount count = mine.tables.get(table.tableId);
+            if (count == null) {
+                count = new TableCount();
+                count.nextEscalation = escalationThreshold;
+                mine.tables.put(table.tableId, count);
+            }
+            count.pages++;
+            if (count.pages < count.nextEscalation)
+                return;
+            count.nextEscalation = count.pages + escalationThreshold;
+        }
+        LockMode have = mine.locks.get(table);
+        LockMode target = have == LockMode.IS ? LockMode.S : LockMode.X;
+        ObjectLock lock = stripeFor(table).locks.get(table);
+        if (lock == null || !tryGrant(lock, tid, have, target))
+            return;
+        mine.locks.put(table, target);
+        escalations.increment();
+        releaseCovered(mine, tid, table);
+    }
+
+    private static void pageRemoved(Held mine, int tableId) {
+        synchronized (mine) {
+            TableCount count = mine.tables.get(tableId);
+            if (count != null)
+                count.pages--;
+        }
+    }
+
+    /**
+     * Releases tid's page locks on a table that its table lock
+     * already grants.
+     */
+    private void releaseCovered(Held mine, TransactionId tid, TableKey table) {
+        LockMode tableMode = mine.locks.get(table);
+        for (Map.Entry<Object, LockMode> e : mine.locks.entrySet()) {
+            Object key = e.getKey();
+            if (key instanceof TableKey || tableOf(key) != table.tableId || !tableMode.covers(e.getValue()))
+                continue;
+            if (mine.locks.remove(key, e.getValue())) {
+                if (key instanceof PageId)
+                    pageRemoved(mine, table.tableId);
+                release(tid, key, e.getValue());
+            }
+        }
+    }
+
+    /**
+     * The slow path: grants the lock under the stripe's monitor, waiting
+     * there until it can be granted or tid is chosen as a deadlock victim.
+     */
+    private void acquire(Stripe stripe, Object key, TransactionId tid, LockMode have, LockMode target)
+            throws TransactionAbortedException {
+        long start = 0;
+        try {
+            while (true) {
+                Stripe wake = null;
+                synchronized (stripe) {
+                    ObjectLock lock = stripe.locks.get(key);
+                    if (lock == null) {
+                        lock = new ObjectLock();
+                        stripe.locks.put(key, lock);
+                    }
+                    // count ourselves before looking at the lock word, so a
+                    // release that misses our attempt sees us and notifies
+                    lock.waiters++;
+                    try {
+                        if (start != 0 && isVictim(tid))
+                            throw new TransactionAbortedException();
+                        if (tryGrant(lock, tid, have, target))
+                            return;
+                        if (start == 0) {
+                            waits.increment();
+                            start = System.nanoTime();
+                        }
+                        synchronized (graph) {
+                            waitsFor.put(tid, new Waiter(blockers(lock, tid, target), stripe));
+                            List<TransactionId> cycle = findCycle(tid);
+                            if (cycle != null) {
+                                deadlocks.increment();
+                                TransactionId victim = youngest(cycle);
+                                if (victim.equals(tid))
+                                    throw new TransactionAbortedException();
+                                victims.add(victim);
+                                wake = waitsFor.get(victim).stripe;
+                            }
+                        }
+                        if (wake == null)
+                            stripe.wait();
+                    } finally {
+                        lock.waiters--;
+                    }
+                }
+                // wake the victim outside our own stripe, so no two stripes
+                // are ever held at once
+                if (wake != null) {
+                    synchronized (wake) {
+                        wake.notifyAll();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransactionAbortedException();
+        } finally {
+            if (start != 0) {
+                synchronized (graph) {
+                    waitsFor.remove(tid);
+                    victims.remove(tid);
+                }
+                waitTimes.record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private void release(TransactionId tid, Object key, LockMode mode) {
+        Stripe stripe = stripeFor(key);
+        ObjectLock lock = stripe.locks.get(key);
+        if (lock == null)
+            return;
+        lock.holders.remove(tid);
+        if (lock.word.addAndGet(-one(mode)) != 0 && lock.waiters == 0)
+            return;
+        synchronized (stripe) {
+            if (lock.waiters > 0)
+                stripe.notifyAll();
+            else if (lock.word.compareAndSet(0, REMOVED))
+                stripe.locks.remove(key, lock);
+        }
+    }
+
+    private boolean isVictim(TransactionId tid) {
+        synchronized (graph) {
+            return victims.contains(tid);
+        }
+    }
+
+    private static long one(LockMode mode) {
+        return 1L << (mode.ordinal() * FIELD_BITS);
+    }
+
+    /**
+     * @return true if one more holder of mode would carry out of its field
+     *         into the next mode's
+     */
+    private static boolean isFull(long word, LockMode mode) {
+        return ((word >>> (mode.ordinal() * FIELD_BITS)) & FIELD_MASK) == FIELD_MASK;
+    }
+
+    /**
+     * Converts tid's lock on an object from have (null if it holds none) to
+     * target with a compare-and-set on the lock word.
+     *
+     * @return false if another holder's mode conflicts with target, target
+     *         already has as many holders as its field can count, or the
+     *         entry was dropped from the table
+     */
+    private static boolean tryGrant(ObjectLock lock, TransactionId tid, LockMode have, LockMode target) {
+        lock.holders.put(tid, target);
+        while (true) {
+            long word = lock.word.get();
+            long others = have == null ? word : word - one(have);
+            if (word < 0 || (others & CONFLICTS[target.ordinal()]) != 0 || isFull(others, target)) {
+                if (have == null)
+                    lock.holders.remove(tid);
+                else
+                    lock.holders.put(tid, have);
+                return false;
+            }
+            if (lock.word.compareAndSet(word, others + one(target)))
+                return true;
+        }
+    }
+
+    private static Set<TransactionId> blockers(ObjectLock lock, TransactionId tid, LockMode target) {
+        Set<TransactionId> blockers = new HashSet<TransactionId>();
+        for (Map.Entry<TransactionId, LockMode> e : lock.holders.entrySet()) {
+            if (!e.getKey().equals(tid) && !target.isCompatibleWith(e.getValue()))
+                blockers.add(e.getKey());
+        }
+        return blockers;
+    }
+
+    /**
+     * Looks for a path in the wait-for graph from start back to itself,
+     * ignoring transactions already chosen as victims.
+     *
+     * @return the transactions on the cycle, or null if there is none
+     */
+    private List<TransactionId> findCycle(TransactionId start) {
+        Map<TransactionId, TransactionId> parent = new HashMap<TransactionId, TransactionId>();
+        Deque<TransactionId> stack = new ArrayDeque<TransactionId>();
+        parent.put(start, null);
+        stack.push(start);
+        while (!stack.isEmpty()) {
+            TransactionId t = stack.pop();
+            Waiter waiter = waitsFor.get(t);
+            if (waiter == null)
+                continue;
+            for (TransactionId n : waiter.blockers) {
+                if (n.equals(start)) {
+                    List<TransactionId> cycle = new ArrayList<TransactionId>();
+                    for (TransactionId c = t; c != null; c = parent.get(c))
+                        cycle.add(c);
+                    return cycle;
+                }
+                if (!parent.containsKey(n) && !victims.contains(n)) {
+                    parent.put(n, t);
+                    stack.push(n);
+                }
+            }
+        }
+        return null;
+    }
+
+    private static TransactionId youngest(List<TransactionId> cycle) {
+        TransactionId youngest = cycle.get(0);
+        for (TransactionId t : cycle) {
+            if (t.getId() > youngest.getId())
+                youngest = t;
+        }
+        return youngest;
+    }
+}
@@ -173,6 +173,18 @@ public class TupleDesc implements Serializable {
         return size;
     }
 
+    /**
+     * @return the offset in bytes of the ith field from the start of a
+     *         tuple corresponding to this TupleDesc.
+     */
+    public int getOffset(int i) {
+        int offset=0;
+        for(int j=0;j<i;j++){
+            offset+=typeAr[j].getLen();
+        }
+        return offset;
+    }
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.
@@ -0,0 +1,232 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * VersionStore gives read-only transactions a consistent snapshot of the
+ * database without taking locks. Every commit that changes pages gets a
+ * timestamp from a commit clock, and a snapshot is the value of that clock
+ * when it began: it sees exactly the commits with a timestamp no greater
+ * than its own.
+ * <p>
+ * The newest committed image of a page is always available from the pool as
+ * the page's before-image. When a commit replaces that image while snapshots
+ * are open, the old image is kept here in the page's version chain, tagged
+ * with the timestamp of the commit that replaced it; a snapshot reads the
+ * oldest version replaced after it began, or the current committed image if
+ * there is none. Versions are dropped once no open snapshot is old enough to
+ * need them.
+ * <p>
+ * A commit announces its versions before it overwrites anything (they count
+ * as replaced by a commit in the future until it gets its timestamp), and
+ * only advances the clock once every page's before-image is updated, so a
+ * snapshot never sees part of a commit. Opening a snapshot waits for the
+ * commits in progress to finish, since one that started while no snapshot
+ * was open keeps no versions.
+ */
+public class VersionStore {
+
+    /** replacement time of a version whose commit has not finished */
+    private static final long PENDING = Long.MAX_VALUE;
+
+    private static class Version {
+        final Page page;
+        /** the timestamp of the commit that replaced this image */
+        volatile long replacedAt = PENDING;
+
+        Version(Page page) {
+            this.page = page;
+        }
+    }
+
+    /**
+     * The versions one commit created, between {@link #startCommit} and
+     * {@link #finishCommit}.
+     */
+    public static class Commit {
+        /** null if no snapshot was open when the commit started */
+        private final List<Version> versions;
+
+        private Commit(List<Version> versions) {
+            this.versions = versions;
+        }
+
+        /**
+         * @return true if snapshots were open when the commit started, so the
+         *         images it replaces have to be passed to {@link VersionStore#keep}
+         */
+        public boolean keepsVersions() {
+            return versions != null;
+        }
+    }
+
+    private volatile long clock;
+    /** the timestamp of every open snapshot */
+    private final Map<TransactionId, Long> snapshots = new ConcurrentHashMap<TransactionId, Long>();
+    /** for each page, the images replaced while a snapshot was open, oldest first */
+    private final ConcurrentHashMap<PageId, List<Version>> chains = new ConcurrentHashMap<PageId, List<Version>>();
+    /** held shared by commits and exclusively to open a snapshot */
+    private final ReentrantReadWriteLock commitLock = new ReentrantReadWriteLock();
+
+    /**
+     * Opens a snapshot for tid at the current commit timestamp.
+     *
+     * @return the snapshot's timestamp
+     */
+    public long begin(TransactionId tid) {
+        commitLock.writeLock().lock();
+        try {
+            long timestamp = clock;
+            snapshots.put(tid, timestamp);
+            return timestamp;
+        } finally {
+            commitLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the timestamp of tid's snapshot, or null if tid has none
+     */
+    public Long snapshotOf(TransactionId tid) {
+        return snapshots.get(tid);
+    }
+
+    /**
+     * Closes tid's snapshot, if it has one, and drops the versions only it
+     * needed.
+     */
+    public void end(TransactionId tid) {
+        if (snapshots.remove(tid) != null)
+            prune();
+    }
+
+    /**
+     * @return the number of old page images kept
+     */
+    public int size() {
+        int n = 0;
+        for (List<Version> chain : chains.values()) {
+            synchronized (chain) {
+                n += chain.size();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Starts a commit that is about to replace the committed images of some
+     * pages. Must be followed by {@link #finishCommit}, once the new images
+     * are on disk and have become the pages' before-images. If the commit
+     * {@link Commit#keepsVersions()}, the current committed image of each
+     * page it changes must be passed to {@link #keep} before anything is
+     * overwritten; otherwise no snapshot can need them, and none can begin
+     * until the commit finishes, so the caller need not build them at all.
+     */
+    public Commit startCommit() {
+        commitLock.readLock().lock();
+        return new Commit(snapshots.isEmpty() ? null : new ArrayList<Version>());
+    }
+
+    /**
+     * Keeps the committed image of a page that a commit which
+     * {@link Commit#keepsVersions()} is about to replace.
+     *
+     * @param commit the commit, between startCommit and finishCommit
+     * @param pid the page
+     * @param replaced the page's current committed image
+     */
+    public void keep(Commit commit, PageId pid, Page replaced) {
+        Version version = new Version(replaced);
+        commit.versions.add(version);
+        add(pid, version);
+    }
+
+    /**
+     * Gives a commit its timestamp, making it visible to snapshots opened
+     * from now on.
+     */
+    public void finishCommit(Commit commit) {
+        try {
+            synchronized (this) {
+                long timestamp = clock + 1;
+                if (commit.versions != null) {
+                    for (Version version : commit.versions)
+                        version.replacedAt = timestamp;
+                }
+                clock = timestamp;
+            }
+        } finally {
+            commitLock.readLock().unlock();
+        }
+        if (commit.versions != null && !commit.versions.isEmpty() && snapshots.isEmpty())
+            prune();
+    }
+
+    /**
+     * Looks up the image of a page a snapshot should see, if a commit after
+     * the snapshot began has replaced it. The caller must read the page's
+     * current committed image before calling this and use it if this
+     * returns null.
+     *
+     * @param snapshot the snapshot's timestamp
+     * @param pid the page
+     * @return the page as of the snapshot, or null if that is the current
+     *         committed image
+     */
+    public Page read(long snapshot, PageId pid) {
+        List<Version> chain = chains.get(pid);
+        if (chain == null)
+            return null;
+        synchronized (chain) {
+            for (Version version : chain) {
+                if (version.replacedAt > snapshot)
+                    return version.page;
+            }
+        }
+        return null;
+    }
+
+    private void add(PageId pid, Version version) {
+        while (true) {
+            List<Version> chain = chains.get(pid);
+            if (chain == null) {
+                chain = new ArrayList<Version>();
+                List<Version> raced = chains.putIfAbsent(pid, chain);
+                if (raced != null)
+                    chain = raced;
+            }
+            synchronized (chain) {
+                // prune may have dropped the chain after we looked it up
+                if (chains.get(pid) == chain) {
+                    chain.add(version);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the versions that every open snapshot began after.
+     */
+    private void prune() {
+        long oldest = PENDING - 1;
+        for (Long timestamp : snapshots.values())
+            oldest = Math.min(oldest, timestamp);
+        Iterator<Map.Entry<PageId, List<Version>>> it = chains.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<PageId, List<Version>> e = it.next();
+            List<Version> chain = e.getValue();
+            synchronized (chain) {
+                while (!chain.isEmpty() && chain.get(0).replacedAt <= oldest)
+                    chain.remove(0);
+                if (chain.isEmpty())
+                    chains.remove(e.getKey(), chain);
+            }
+        }
+    }
+}
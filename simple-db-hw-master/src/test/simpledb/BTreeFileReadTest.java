@@ -130,6 +130,33 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 		it.close();
 	}
 
+	/**
+	 * Unit test for BTreeFile.findLeafPage(): internal pages are read
+	 * optimistically, so only the leaf the lookup ends on is locked.
+	 */
+	@Test public void findLeafPageLocksOnlyLeaf() throws Exception {
+		BTreeFile twoLeafPageFile = BTreeUtility.createBTreeFile(2, 520,
+				null, null, 0);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(twoLeafPageFile.getId()), Permissions.READ_ONLY);
+		BTreePageId rootId = rootPtr.getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+
+		Field key = new IntField(500);
+		BTreeLeafPage leaf = twoLeafPageFile.findLeafPage(tid, rootId, Permissions.READ_ONLY, key);
+		assertTrue(Database.getBufferPool().holdsLock(tid, leaf.getId()));
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootId));
+
+		boolean found = false;
+		Iterator<Tuple> it = leaf.iterator();
+		while(it.hasNext()) {
+			found |= it.next().getField(0).equals(key);
+		}
+		assertTrue(found);
+		assertFalse(leaf.getId().equals(
+				twoLeafPageFile.findLeafPage(tid, rootId, Permissions.READ_ONLY, null).getId()));
+	}
+
 	/**
 	 * Unit test for BTreeFile.indexIterator()
 	 */
@@ -0,0 +1,163 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolConcurrencyTest extends SimpleDbTestBase {
+    private BufferPool pool;
+    private SlowHeapFile hf;
+
+    /** a heap file whose reads of page 0 wait until they are let through */
+    static class SlowHeapFile extends HeapFile {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final AtomicInteger reads = new AtomicInteger();
+
+        SlowHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            if (pid.getPageNumber() == 0) {
+                reads.incrementAndGet();
+                reading.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    /** runs getPage on its own thread */
+    static class Fetch extends Thread {
+        final BufferPool pool;
+        final PageId pid;
+        volatile Page page;
+        volatile Exception error;
+
+        Fetch(BufferPool pool, PageId pid) {
+            this.pool = pool;
+            this.pid = pid;
+            start();
+        }
+
+        public void run() {
+            try {
+                page = pool.getPage(new TransactionId(), pid, Permissions.READ_ONLY);
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+    }
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        pool = Database.resetBufferPool(2);
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 1100, 1000, null, null);
+        hf = new SlowHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+    }
+
+    @After public void tearDown() {
+        hf.proceed.countDown();
+    }
+
+    private HeapPageId pid(int pgno) {
+        return new HeapPageId(hf.getId(), pgno);
+    }
+
+    /**
+     * A page being read does not hold up requests for other pages of its
+     * shard, and a second request for it waits for the read in progress
+     * instead of reading the page again.
+     */
+    @Test(timeout=10000) public void readOutsideShardMonitor() throws Exception {
+        Fetch first = new Fetch(pool, pid(0));
+        assertTrue(hf.reading.await(10, TimeUnit.SECONDS));
+
+        pool.getPage(new TransactionId(), pid(1), Permissions.READ_ONLY);
+        Fetch second = new Fetch(pool, pid(0));
+
+        hf.proceed.countDown();
+        first.join();
+        second.join();
+        assertNull(first.error);
+        assertNull(second.error);
+        assertEquals(1, hf.reads.get());
+        assertEquals(pid(0), second.page.getId());
+    }
+
+    /**
+     * In off-heap mode, READ_ONLY hits on a page kept in the arena share one
+     * decoded copy instead of decoding the page again, and a writer is handed
+     * that same copy.
+     */
+    @Test public void offHeapHitsShareDecodedPage() throws Exception {
+        BufferPool offHeap = new BufferPool(4, 1, ClockReplacementPolicy.FACTORY, true);
+        offHeap.setReadAheadWindow(0);
+        TransactionId tid = new TransactionId();
+        Page first = offHeap.getPage(tid, pid(1), Permissions.READ_ONLY);
+        assertSame(first, offHeap.getPage(tid, pid(1), Permissions.READ_ONLY));
+        assertSame(first, offHeap.getPage(tid, pid(1), Permissions.READ_WRITE));
+        offHeap.transactionComplete(tid);
+    }
+
+    /**
+     * A page written back early is latched against its owner's changes, so a
+     * change in progress ends up both on disk and in the page marked clean.
+     */
+    @Test(timeout=10000) public void writeBackWaitsForChange() throws Exception {
+        TransactionId tid = new TransactionId();
+        final HeapPage page = (HeapPage) pool.getPage(tid, pid(1), Permissions.READ_WRITE);
+        page.markDirty(true, tid);
+        final Exception[] error = new Exception[1];
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    pool.writeBack(pid(1));
+                } catch (Exception e) {
+                    error[0] = e;
+                }
+            }
+        };
+        synchronized (page) {
+            writer.start();
+            while (writer.getState() != Thread.State.BLOCKED)
+                Thread.sleep(1);
+            page.deleteTuple(page.iterator().next());
+            page.markDirty(true, tid);
+        }
+        writer.join();
+        assertNull(error[0]);
+        assertNull(page.isDirty());
+        HeapPage onDisk = (HeapPage) hf.readPage(pid(1));
+        assertEquals(page.getNumEmptySlots(), onDisk.getNumEmptySlots());
+        pool.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolConcurrencyTest.class);
+    }
+}
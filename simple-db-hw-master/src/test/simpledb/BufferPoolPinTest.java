@@ -0,0 +1,123 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolPinTest extends SimpleDbTestBase {
+    private BufferPool pool;
+    private HeapFile hf;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        pool = Database.resetBufferPool(2);
+        pool.setReadAheadWindow(0);
+        hf = SystemTestUtil.createRandomHeapFile(2, 1100, null,
+                new ArrayList<ArrayList<Integer>>());
+        tid = new TransactionId();
+    }
+
+    private HeapPageId pid(int pgno) {
+        return new HeapPageId(hf.getId(), pgno);
+    }
+
+    /**
+     * A pinned page stays cached while unpinned pages are evicted around it.
+     */
+    @Test public void pinnedPageIsNotEvicted() throws Exception {
+        pool.pinPage(tid, pid(0), Permissions.READ_ONLY);
+        pool.getPage(tid, pid(1), Permissions.READ_ONLY);
+        pool.getPage(tid, pid(2), Permissions.READ_ONLY);
+        assertEquals(1, pool.getStats().getPinnedFrames());
+
+        long misses = pool.getStats().getMisses();
+        pool.getPage(tid, pid(0), Permissions.READ_ONLY);
+        assertEquals(misses, pool.getStats().getMisses());
+        pool.transactionComplete(tid);
+    }
+
+    /**
+     * A pool whose frames are all pinned refuses new pages until one is
+     * unpinned, and pins left over are dropped when the transaction ends.
+     */
+    @Test public void unpinAndTransactionEnd() throws Exception {
+        pool.pinPage(tid, pid(0), Permissions.READ_ONLY);
+        pool.pinPage(tid, pid(1), Permissions.READ_ONLY);
+        pool.pinPage(tid, pid(1), Permissions.READ_ONLY);
+        try {
+            pool.getPage(tid, pid(2), Permissions.READ_ONLY);
+            fail("expected DbException: every frame is pinned");
+        } catch (DbException e) {
+            // expected
+        }
+
+        // page 1 was pinned twice
+        pool.unpinPage(tid, pid(1));
+        assertEquals(2, pool.getStats().getPinnedFrames());
+        pool.unpinPage(tid, pid(0));
+        pool.getPage(tid, pid(2), Permissions.READ_ONLY);
+
+        pool.transactionComplete(tid);
+        assertEquals(0, pool.getStats().getPinnedFrames());
+    }
+
+    /**
+     * Pinning a cached page does not take its shard's monitor.
+     */
+    @Test(timeout=10000) public void pinnedHitIsLockFree() throws Exception {
+        pool.getPage(tid, pid(0), Permissions.READ_ONLY);
+        Field shards = BufferPool.class.getDeclaredField("shards");
+        shards.setAccessible(true);
+        Object shard = ((Object[]) shards.get(pool))[0];
+        Thread pinner = new Thread() {
+            public void run() {
+                try {
+                    pool.pinPage(tid, pid(0), Permissions.READ_ONLY);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        synchronized (shard) {
+            pinner.start();
+            pinner.join(5000);
+            assertFalse(pinner.isAlive());
+        }
+        assertEquals(1, pool.getStats().getPinnedFrames());
+        pool.transactionComplete(tid);
+        assertEquals(0, pool.getStats().getPinnedFrames());
+    }
+
+    /**
+     * A finished scan leaves nothing pinned.
+     */
+    @Test public void scanUnpins() throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        it.hasNext();
+        assertEquals(1, pool.getStats().getPinnedFrames());
+        while (it.hasNext())
+            it.next();
+        assertEquals(0, pool.getStats().getPinnedFrames());
+        it.close();
+        pool.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolPinTest.class);
+    }
+}
@@ -0,0 +1,91 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolStatsTest extends SimpleDbTestBase {
+
+    /**
+     * Hits, misses and evictions as seen through Database.getBufferPoolStats()
+     */
+    @Test public void countsHitsMissesAndEvictions() throws Exception {
+        BufferPool pool = Database.resetBufferPool(2);
+        pool.setReadAheadWindow(0);
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1100, null,
+                new ArrayList<ArrayList<Integer>>());
+        assertEquals(3, hf.numPages());
+        TransactionId tid = new TransactionId();
+        long lockWaits = TransactionLock.getTransactionLock().getWaitTimes().getCount();
+
+        pool.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        pool.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        pool.getPage(tid, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+        pool.getPage(tid, new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY);
+
+        BufferPoolStats.Snapshot stats = Database.getBufferPoolStats();
+        assertEquals(1, stats.getHits());
+        assertEquals(3, stats.getMisses());
+        assertEquals(0.25, stats.getHitRatio(), 1e-9);
+        assertEquals(Long.valueOf(3), stats.getMissesByTable().get(hf.getId()));
+        assertEquals(1, stats.getEvictions());
+        assertEquals(2, stats.getCachedFrames());
+        assertEquals(0, stats.getDirtyFrames());
+        assertEquals(3, stats.getReadLatency().getCount());
+        // no request had to wait for its lock
+        assertEquals(lockWaits, stats.getLockWait().getCount());
+        pool.transactionComplete(tid);
+    }
+
+    /**
+     * Pages are only loaded ahead of a sequential scan once read-ahead has
+     * been turned on.
+     */
+    @Test(timeout=10000) public void readAheadIsOptIn() throws Exception {
+        BufferPool pool = Database.resetBufferPool(10);
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 5, null,
+                new ArrayList<ArrayList<Integer>>());
+        assertEquals(5, hf.numPages());
+        TransactionId tid = new TransactionId();
+
+        pool.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        pool.getPage(tid, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+        assertEquals(0, pool.getStats().getPrefetches());
+
+        pool.setReadAheadWindow(BufferPool.DEFAULT_READ_AHEAD_PAGES);
+        pool.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        pool.getPage(tid, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+        while (pool.getStats().getPrefetches() < 3)
+            Thread.sleep(10);
+        pool.transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for LatencyHistogram bucketing
+     */
+    @Test public void histogramPercentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 0; i < 99; i++)
+            h.record(500);          // under 1us
+        h.record(3000000);          // 3ms, in [2048us, 4096us)
+        LatencyHistogram.Snapshot s = h.snapshot();
+        assertEquals(100, s.getCount());
+        assertEquals(1, s.getPercentileMicros(0.5));
+        assertEquals(1, s.getPercentileMicros(0.99));
+        assertEquals(4096, s.getPercentileMicros(1.0));
+        assertEquals((99 * 500 + 3000000) / 1000.0 / 100, s.getMeanMicros(), 1e-9);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolStatsTest.class);
+    }
+}
@@ -1,8 +1,6 @@
 package simpledb;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 
@@ -35,12 +33,9 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     		ArrayList<Page> dirtypages = new ArrayList<Page>();
     		for(int i = 0; i < duplicates; i++) {
     			// create a blank page
-    			BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(super.getFile(), true));
-                byte[] emptyData = HeapPage.createEmptyPageData();
-                bw.write(emptyData);
-                bw.close();
-    			HeapPage p = new HeapPage(new HeapPageId(super.getId(), super.numPages() - 1), 
-    					HeapPage.createEmptyPageData());
+    			HeapPageId pid = new HeapPageId(super.getId(), super.numPages());
+    			super.writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+    			HeapPage p = new HeapPage(pid, HeapPage.createEmptyPageData());
     	        p.insertTuple(t);
     			dirtypages.add(p);
     		}
@@ -133,6 +128,95 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * A transaction that dirties more pages than the pool holds must be able
+     * to continue, and aborting it must undo the pages written early.
+     */
+    @Test public void stealWhenFullOfDirtyPages() throws Exception {
+        Database.resetBufferPool(3);
+        HeapFileDuplicates hfd = new HeapFileDuplicates(empty.getFile(), empty.getTupleDesc(), 5);
+        Database.getCatalog().addTable(hfd, SystemTestUtil.getUUID());
+        Database.getBufferPool().insertTuple(tid, hfd.getId(), Utility.getHeapTuple(1, 2));
+
+        Database.getBufferPool().transactionComplete(tid, false);
+        for (int i = 0; i < hfd.numPages(); i++) {
+            HeapPage p = (HeapPage) hfd.readPage(new HeapPageId(hfd.getId(), i));
+            assertEquals(504, p.getNumEmptySlots());
+        }
+    }
+
+    /**
+     * Shrinking a pool full of dirty pages writes them back instead of
+     * dropping them, and an abort still undoes them.
+     */
+    @Test public void resizeWithDirtyPages() throws Exception {
+        BufferPool pool = Database.resetBufferPool(10);
+        HeapFileDuplicates hfd = new HeapFileDuplicates(empty.getFile(), empty.getTupleDesc(), 6);
+        Database.getCatalog().addTable(hfd, SystemTestUtil.getUUID());
+        pool.insertTuple(tid, hfd.getId(), Utility.getHeapTuple(1, 2));
+        assertEquals(6, pool.getStats().getDirtyFrames());
+
+        pool.resize(2);
+        assertEquals(2, pool.getNumPages());
+        assertEquals(2, pool.getStats().getCachedFrames());
+        assertEquals(4, pool.getStats().getWriteBacks());
+
+        pool.resize(10);
+        assertEquals(10, pool.getNumPages());
+        pool.transactionComplete(tid, false);
+        for (int i = 0; i < hfd.numPages(); i++) {
+            HeapPage p = (HeapPage) hfd.readPage(new HeapPageId(hfd.getId(), i));
+            assertEquals(504, p.getNumEmptySlots());
+        }
+    }
+
+    /**
+     * A shrink that fails part way leaves every shard at its old share.
+     */
+    @Test public void resizeRollsBackOnFailure() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 40, null, null);
+        BufferPool pool = new BufferPool(8, 2, ClockReplacementPolicy.FACTORY, false);
+        // one of the two shards gets at least two of these and cannot shrink to one page
+        for (int i = 0; i < 4; i++)
+            pool.pinPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        try {
+            pool.resize(2);
+            fail("expected resize to fail with every page of a shard pinned");
+        } catch (DbException e) {
+            // expected
+        }
+        assertEquals(8, pool.getNumPages());
+
+        for (int i = 0; i < 4; i++)
+            pool.unpinPage(tid, new HeapPageId(hf.getId(), i));
+        for (int i = 0; i < 40; i++)
+            pool.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        assertEquals(8, pool.getStats().getCachedFrames());
+        pool.transactionComplete(tid);
+    }
+
+    /**
+     * Resizing an off-heap pool moves the cached pages into the new arena.
+     */
+    @Test public void resizeOffHeap() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 6, null, null);
+        BufferPool pool = new BufferPool(8, 1, ClockReplacementPolicy.FACTORY, true);
+        pool.setReadAheadWindow(0);
+        for (int i = 0; i < 6; i++)
+            pool.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+
+        pool.resize(3);
+        assertEquals(3, pool.getStats().getCachedFrames());
+        pool.resize(16);
+        for (int i = 0; i < 6; i++) {
+            HeapPageId pid = new HeapPageId(hf.getId(), i);
+            Page cached = pool.getPage(tid, pid, Permissions.READ_ONLY);
+            assertArrayEquals(hf.readPage(pid).getPageData(), cached.getPageData());
+        }
+        assertEquals(6, pool.getStats().getCachedFrames());
+        pool.transactionComplete(tid);
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,81 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class CompressedPageCacheTest extends SimpleDbTestBase {
+
+    /**
+     * Unit test for CompressedPageCache: pages round-trip, are removed when
+     * taken, and the oldest go first once the budget is exceeded.
+     */
+    @Test public void roundTripAndBudget() throws Exception {
+        byte[] data = HeapPage.createEmptyPageData();
+        data[0] = 7;
+        data[data.length - 1] = 9;
+        HeapPageId p0 = new HeapPageId(1, 0);
+        HeapPageId p1 = new HeapPageId(1, 1);
+
+        CompressedPageCache cache = new CompressedPageCache(1 << 20);
+        cache.put(p0, data);
+        assertTrue(cache.bytes() < data.length / 10);
+        assertArrayEquals(data, cache.take(p0, data.length));
+        assertNull(cache.take(p0, data.length));
+
+        cache.put(p0, data);
+        long oneEntry = cache.bytes();
+        cache = new CompressedPageCache(oneEntry);
+        cache.put(p0, data);
+        cache.put(p1, data);
+        assertEquals(1, cache.size());
+        assertNull(cache.take(p0, data.length));
+        assertArrayEquals(data, cache.take(p1, data.length));
+    }
+
+    /**
+     * A page evicted from the pool is served from the second tier on its
+     * next miss.
+     */
+    @Test public void evictedPageComesBackFromSecondTier() throws Exception {
+        BufferPool pool = Database.resetBufferPool(2);
+        pool.setReadAheadWindow(0);
+        pool.setCompressedCacheSize(1 << 20);
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1100, null,
+                new ArrayList<ArrayList<Integer>>());
+        TransactionId tid = new TransactionId();
+
+        for (int i = 0; i < 3; i++)
+            pool.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        assertEquals(1, pool.getStats().getEvictions());
+
+        HeapPageId evicted = null;
+        for (int i = 0; i < 3 && evicted == null; i++) {
+            HeapPageId pid = new HeapPageId(hf.getId(), i);
+            long before = pool.getStats().getSecondTierHits();
+            Page page = pool.getPage(tid, pid, Permissions.READ_ONLY);
+            if (pool.getStats().getSecondTierHits() > before) {
+                evicted = pid;
+                assertArrayEquals(hf.readPage(pid).getPageData(), page.getPageData());
+            }
+        }
+        assertTrue(evicted != null);
+        pool.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CompressedPageCacheTest.class);
+    }
+}
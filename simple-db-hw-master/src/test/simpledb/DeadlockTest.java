@@ -7,6 +7,8 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 
 public class DeadlockTest extends TestUtil.CreateHeapFile {
@@ -211,6 +213,34 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * A deadlock is broken as soon as it forms, by aborting the youngest
+   * transaction on the cycle; the older one then gets its lock.
+   */
+  @Test public void testYoungestIsAbortedImmediately() throws Exception {
+    long deadlocks = TransactionLock.getTransactionLock().getDeadlocks();
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.getPage(tid2, p1, Permissions.READ_WRITE);
+
+    LockGrabber lg1 = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(lg1.acquired());
+
+    // tid2 was created after tid1, so closing the cycle aborts tid2
+    try {
+      bp.getPage(tid2, p0, Permissions.READ_WRITE);
+      fail("expected TransactionAbortedException");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    assertEquals(deadlocks + 1, TransactionLock.getTransactionLock().getDeadlocks());
+
+    bp.transactionComplete(tid2, false);
+    lg1.join(WAIT_INTERVAL);
+    assertTrue(lg1.acquired());
+    bp.transactionComplete(tid1);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,102 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+
+    /**
+     * Unit test for FreeSpaceMap: known pages with room come first, then
+     * unknown pages, and a saved map is only loaded back while it matches
+     * the heap file's page count and its checksum.
+     */
+    @Test public void pagesWithRoomAndPersistence() throws Exception {
+        File heap = File.createTempFile("fsm", ".dat");
+        heap.deleteOnExit();
+        File saved = new File(heap.getPath() + ".fsm");
+        saved.deleteOnExit();
+
+        FreeSpaceMap fsm = new FreeSpaceMap(heap, 3);
+        assertEquals(0, fsm.pageWithRoom(3));
+        fsm.update(0, 0);
+        fsm.update(1, 0);
+        assertEquals(2, fsm.pageWithRoom(3));
+        fsm.update(2, 0);
+        assertEquals(-1, fsm.pageWithRoom(3));
+        fsm.update(1, 1000);
+        assertEquals(1, fsm.pageWithRoom(3));
+        assertEquals(FreeSpaceMap.MAX_RECORDED, fsm.freeSlots(1));
+        // updates stay in memory until the map is saved
+        assertFalse(saved.exists());
+        fsm.close(3);
+
+        fsm = new FreeSpaceMap(heap, 3);
+        assertEquals(0, fsm.freeSlots(0));
+        assertEquals(1, fsm.pageWithRoom(3));
+
+        // a heap file that has grown behind the map's back is rescanned
+        fsm = new FreeSpaceMap(heap, 4);
+        assertEquals(-1, fsm.freeSlots(1));
+        assertEquals(0, fsm.pageWithRoom(4));
+
+        // so is a damaged map
+        RandomAccessFile out = new RandomAccessFile(saved, "rw");
+        out.seek(out.length() - 1);
+        out.write(7);
+        out.close();
+        fsm = new FreeSpaceMap(heap, 3);
+        assertEquals(-1, fsm.freeSlots(1));
+    }
+
+    /**
+     * Pages written one at a time only save the map once enough entries have
+     * changed.
+     */
+    @Test public void saveIfDueWaitsForThreshold() throws Exception {
+        File heap = File.createTempFile("fsm", ".dat");
+        heap.deleteOnExit();
+        File saved = new File(heap.getPath() + ".fsm");
+        saved.deleteOnExit();
+
+        int numPages = FreeSpaceMap.SAVE_THRESHOLD;
+        FreeSpaceMap fsm = new FreeSpaceMap(heap, numPages);
+        for (int pgno = 0; pgno < numPages - 1; pgno++) {
+            fsm.update(pgno, 1);
+            fsm.saveIfDue(numPages);
+        }
+        assertFalse(saved.exists());
+        fsm.update(numPages - 1, 1);
+        fsm.saveIfDue(numPages);
+        assertTrue(saved.exists());
+        fsm.close(numPages);
+    }
+
+    /**
+     * A heap file whose map is not saved leaves no file next to it.
+     */
+    @Test public void scratchFilesLeaveNoMap() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(1, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        hf.close();
+        assertFalse(new File(hf.getFile().getPath() + ".fsm").exists());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
@@ -77,6 +77,67 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * The cached page count follows pages written through the file, and a
+     * page past the end cannot be read.
+     */
+    @Test
+    public void numPagesFollowsWrites() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 1);
+        try {
+            hf.readPage(pid);
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+        }
+
+        hf.writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+        assertEquals(2, hf.numPages());
+        assertEquals(504, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+        // the first page is still read correctly after the second
+        assertEquals(484, ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0))).getNumEmptySlots());
+    }
+
+    /**
+     * Pages read through the memory mapping match pages read through the
+     * channel, including pages written after the file was first mapped.
+     */
+    @Test
+    public void memoryMappedReads() throws Exception {
+        HeapPageId p0 = new HeapPageId(hf.getId(), 0);
+        HeapPageId p1 = new HeapPageId(hf.getId(), 1);
+        byte[] expected = hf.readPage(p0).getPageData();
+        hf.setMemoryMapped(true);
+        assertArrayEquals(expected, hf.readPage(p0).getPageData());
+
+        HeapPage written = new HeapPage(p1, HeapPage.createEmptyPageData());
+        written.insertTuple(Utility.getHeapTuple(7, 2));
+        hf.writePage(written);
+        HeapPage read = (HeapPage) hf.readPage(p1);
+        assertArrayEquals(written.getPageData(), read.getPageData());
+        assertEquals(503, read.getNumEmptySlots());
+
+        hf.setMemoryMapped(false);
+        assertArrayEquals(written.getPageData(), hf.readPage(p1).getPageData());
+    }
+
+    /**
+     * A page decoded in place from the mapping keeps its before image when
+     * it is written back through the channel, which changes the mapping.
+     */
+    @Test
+    public void mappedPageBeforeImage() throws Exception {
+        HeapPageId p0 = new HeapPageId(hf.getId(), 0);
+        hf.setMemoryMapped(true);
+        HeapPage page = (HeapPage) hf.readPage(p0);
+        byte[] original = page.getPageData();
+        page.deleteTuple(page.iterator().next());
+        hf.writePage(page);
+
+        assertArrayEquals(original, page.getBeforeImage().getPageData());
+        assertArrayEquals(page.getPageData(), hf.readPage(p0).getPageData());
+        hf.setMemoryMapped(false);
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
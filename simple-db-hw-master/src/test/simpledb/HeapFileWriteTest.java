@@ -4,6 +4,8 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
 
@@ -43,6 +45,87 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Once a page has room again, the free-space map sends the next insert
+     * back to it instead of growing the file.
+     */
+    @Test public void insertReusesFreedSlot() throws Exception {
+        Tuple victim = Utility.getHeapTuple(0, 2);
+        empty.insertTuple(tid, victim);
+        for (int i = 1; i < 505; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        assertEquals(2, empty.numPages());
+        assertEquals(0, victim.getRecordId().getPageId().getPageNumber());
+        empty.deleteTuple(tid, victim);
+
+        Tuple t = Utility.getHeapTuple(1, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(2, empty.numPages());
+        assertEquals(0, t.getRecordId().getPageId().getPageNumber());
+    }
+
+    /**
+     * Unit test for HeapFile.bulkLoad(): the tuples fill whole pages after the
+     * existing ones, appear on commit and are gone again after an abort.
+     */
+    @Test public void bulkLoad() throws Exception {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 1200; ++i)
+            tuples.add(Utility.getHeapTuple(i, 2));
+        assertEquals(1200, empty.bulkLoad(tid, tuples.iterator()));
+        assertEquals(4, empty.numPages());
+        assertEquals(1, tuples.get(0).getRecordId().getPageId().getPageNumber());
+        assertEquals(3, tuples.get(1199).getRecordId().getPageId().getPageNumber());
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(1200, count(empty));
+
+        tid = new TransactionId();
+        empty.bulkLoad(tid, tuples.iterator());
+        Database.getBufferPool().transactionComplete(tid, false);
+        tid = new TransactionId();
+        assertEquals(1200, count(empty));
+    }
+
+    private static int count(HeapFile f) throws Exception {
+        TransactionId reader = new TransactionId();
+        DbFileIterator it = f.iterator(reader);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(reader);
+        return n;
+    }
+
+    /**
+     * Unit test for HeapFile.writePages(): pages handed over out of order and
+     * with a gap must each land at their own offset.
+     */
+    @Test public void writePages() throws Exception {
+        int tableId = empty.getId();
+        int[] order = {3, 0, 4, 1};
+        ArrayList<Page> pages = new ArrayList<Page>();
+        for (int pgno : order) {
+            HeapPage page = new HeapPage(new HeapPageId(tableId, pgno),
+                    HeapPage.createEmptyPageData());
+            for (int i = 0; i <= pgno; ++i)
+                page.insertTuple(Utility.getHeapTuple(pgno * 10 + i, 2));
+            pages.add(page);
+        }
+        empty.writePages(pages);
+
+        assertEquals(5, empty.numPages());
+        for (Page page : pages) {
+            Page read = empty.readPage(page.getId());
+            assertArrayEquals(page.getPageData(), read.getPageData());
+        }
+        // the page in the gap is still empty
+        assertEquals(504, ((HeapPage) empty.readPage(new HeapPageId(tableId, 2))).getNumEmptySlots());
+    }
+
     /**
      * JUnit suite target
      */
@@ -120,6 +120,36 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Single fields and predicate scans read the same values as whole tuples,
+     * and deleted slots are skipped.
+     */
+    @Test public void lazyFieldsAndPredicate() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        for (int i = 0; i < EXAMPLE_VALUES.length; ++i)
+            assertEquals(new IntField(EXAMPLE_VALUES[i][1]), page.getField(i, 1));
+
+        Tuple deleted = page.iterator().next();
+        page.deleteTuple(deleted);
+
+        // a predicate scan returns what filtering the whole page returns
+        Predicate p = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(30000));
+        Iterator<Tuple> it = page.iterator(p);
+        Iterator<Tuple> all = page.iterator();
+        int matched = 0;
+        while (all.hasNext()) {
+            Tuple expected = all.next();
+            if (!p.filter(expected))
+                continue;
+            Tuple tup = it.next();
+            assertEquals(expected.getRecordId(), tup.getRecordId());
+            assertEquals(expected.getField(1), tup.getField(1));
+            matched++;
+        }
+        assertFalse(it.hasNext());
+        assertTrue(matched > 0 && matched < EXAMPLE_VALUES.length - 1);
+    }
+
     /**
      * JUnit suite target
      */
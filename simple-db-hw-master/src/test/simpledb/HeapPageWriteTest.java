@@ -1,9 +1,11 @@
 package simpledb;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -126,6 +128,41 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * The before image set at commit is the page as it stood then, even
+     * though it is only captured when the page next changes.
+     */
+    @Test public void beforeImageCapturedOnChange() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        byte[] committed = page.getPageData();
+        page.setBeforeImage();
+        assertArrayEquals(committed, page.getBeforeImage().getPageData());
+
+        page.deleteTuple(page.iterator().next());
+        page.insertTuple(Utility.getHeapTuple(8, 2));
+        assertArrayEquals(committed, page.getBeforeImage().getPageData());
+        assertEquals(page.getNumEmptySlots(), new HeapPage(pid, page.getPageData()).getNumEmptySlots());
+    }
+
+    /**
+     * writePageData writes the same bytes as getPageData at the buffer's
+     * position.
+     */
+    @Test public void writePageDataAtPosition() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        page.insertTuple(Utility.getHeapTuple(9, 2));
+        int pageSize = BufferPool.getPageSize();
+        ByteBuffer buf = ByteBuffer.allocate(pageSize + 3);
+        buf.position(3);
+        page.writePageData(buf);
+        assertEquals(pageSize + 3, buf.position());
+        byte[] written = new byte[pageSize];
+        System.arraycopy(buf.array(), 3, written, 0, pageSize);
+        assertArrayEquals(page.getPageData(), written);
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, page.getBeforeImage().getPageData());
+    }
+
     /**
      * JUnit suite target
      */
@@ -3,7 +3,9 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
 public class LockingTest extends TestUtil.CreateHeapFile {
@@ -190,6 +192,79 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Many transactions share a read lock; a writer gets the page only once
+   * every reader has completed, and completing a transaction drops all of
+   * its locks at once.
+   */
+  @Test public void sharedByManyThenCompleted() throws Exception {
+    TransactionId[] readers = new TransactionId[8];
+    for (int i = 0; i < readers.length; i++) {
+      readers[i] = new TransactionId();
+      bp.getPage(readers[i], p0, Permissions.READ_ONLY);
+      bp.getPage(readers[i], p1, Permissions.READ_ONLY);
+    }
+    grabLock(tid1, p0, Permissions.READ_WRITE, false);
+
+    for (int i = 0; i < readers.length; i++) {
+      bp.transactionComplete(readers[i]);
+      assertFalse(bp.holdsLock(readers[i], p0));
+      assertFalse(bp.holdsLock(readers[i], p1));
+    }
+    grabLock(tid1, p0, Permissions.READ_WRITE, true);
+    grabLock(tid2, p1, Permissions.READ_WRITE, true);
+  }
+
+  /**
+   * Once a transaction holds enough page locks on a table they are replaced
+   * by one table lock, which covers the pages it has not touched yet.
+   */
+  @Test public void escalateToTableLock() throws Exception {
+    TransactionLock locks = TransactionLock.getTransactionLock();
+    locks.setEscalationThreshold(2);
+    long escalations = locks.getEscalations();
+
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    assertEquals(LockMode.IS, locks.getTableMode(tid1, empty.getId()));
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    assertEquals(LockMode.S, locks.getTableMode(tid1, empty.getId()));
+    assertEquals(escalations + 1, locks.getEscalations());
+    assertTrue(bp.holdsLock(tid1, p2));
+
+    grabLock(tid2, p2, Permissions.READ_ONLY, true);
+    grabLock(tid2, p2, Permissions.READ_WRITE, false);
+  }
+
+  /**
+   * Converting a lock combines the modes, and the intention modes are
+   * compatible with the shared modes they announce.
+   */
+  @Test public void lockModes() throws Exception {
+    assertEquals(LockMode.SIX, LockMode.S.combine(LockMode.IX));
+    assertEquals(LockMode.X, LockMode.SIX.combine(LockMode.X));
+    assertTrue(LockMode.IS.isCompatibleWith(LockMode.SIX));
+    assertFalse(LockMode.IX.isCompatibleWith(LockMode.S));
+  }
+
+  /**
+   * A page can have only so many holders of one mode counted in its lock
+   * word; the next reader waits for one of them instead of spilling into
+   * another mode's count.
+   */
+  @Test public void sharedHolderLimit() throws Exception {
+    TransactionId[] readers = new TransactionId[4095];
+    for (int i = 0; i < readers.length; i++) {
+      readers[i] = new TransactionId();
+      bp.getPage(readers[i], p0, Permissions.READ_ONLY);
+    }
+    grabLock(tid1, p0, Permissions.READ_ONLY, false);
+    grabLock(tid2, p0, Permissions.READ_WRITE, false);
+
+    bp.transactionComplete(readers[0]);
+    grabLock(tid1, p0, Permissions.READ_ONLY, true);
+    grabLock(tid2, p0, Permissions.READ_WRITE, false);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,188 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static final ReplacementPolicy.Evictable ANY = new ReplacementPolicy.Evictable() {
+        public boolean canEvict(PageId pid) {
+            return true;
+        }
+    };
+
+    private static ReplacementPolicy.Evictable allBut(final PageId pinned) {
+        return new ReplacementPolicy.Evictable() {
+            public boolean canEvict(PageId pid) {
+                return !pid.equals(pinned);
+            }
+        };
+    }
+
+    private static ReplacementPolicy.Evictable only(final PageId clean) {
+        return new ReplacementPolicy.Evictable() {
+            public boolean canEvict(PageId pid) {
+                return pid.equals(clean);
+            }
+        };
+    }
+
+    private final HeapPageId p0 = new HeapPageId(1, 0);
+    private final HeapPageId p1 = new HeapPageId(1, 1);
+    private final HeapPageId p2 = new HeapPageId(1, 2);
+
+    /**
+     * Unit test for ClockReplacementPolicy.chooseVictim()
+     */
+    @Test public void clockGivesSecondChance() {
+        ReplacementPolicy policy = new ClockReplacementPolicy();
+        policy.pageAdded(p0);
+        policy.pageAdded(p1);
+        policy.pageAdded(p2);
+
+        // every bit is set, so the hand clears them all and comes back to p0
+        assertEquals(p0, policy.chooseVictim(ANY));
+        policy.pageRemoved(p0);
+
+        // p1 is used again before the next sweep and survives it
+        policy.pageAccessed(p1);
+        assertEquals(p2, policy.chooseVictim(ANY));
+    }
+
+    /**
+     * Unit test for ClockReplacementPolicy.chooseVictim() with pages that may not be evicted
+     */
+    @Test public void clockSkipsUnevictable() {
+        ReplacementPolicy policy = new ClockReplacementPolicy();
+        policy.pageAdded(p0);
+        policy.pageAdded(p1);
+        assertEquals(p1, policy.chooseVictim(allBut(p0)));
+
+        policy.pageRemoved(p1);
+        assertNull(policy.chooseVictim(allBut(p0)));
+
+        policy.pageRemoved(p0);
+        assertNull(policy.chooseVictim(ANY));
+    }
+
+    /**
+     * Unit test for ClockReplacementPolicy.chooseVictim() when most pages
+     * may not be evicted: a sweep looks at each page once and leaves the
+     * reference bits of the pages it cannot take alone.
+     */
+    @Test public void clockMostlyDirty() {
+        ReplacementPolicy policy = new ClockReplacementPolicy();
+        HeapPageId[] pages = new HeapPageId[10];
+        for (int i = 0; i < pages.length; i++) {
+            pages[i] = new HeapPageId(1, i);
+            policy.pageAdded(pages[i]);
+        }
+        final int[] checked = new int[1];
+        ReplacementPolicy.Evictable dirty = new ReplacementPolicy.Evictable() {
+            public boolean canEvict(PageId pid) {
+                checked[0]++;
+                return false;
+            }
+        };
+        assertNull(policy.chooseVictim(dirty));
+        assertEquals(pages.length, checked[0]);
+
+        // the pages kept their bits, so a page added cold goes first
+        HeapPageId cold = new HeapPageId(1, pages.length);
+        policy.pageAddedCold(cold);
+        assertEquals(cold, policy.chooseVictim(ANY));
+        policy.pageRemoved(cold);
+
+        // with one clean page, the others are passed over and it is taken
+        assertEquals(pages[3], policy.chooseVictim(only(pages[3])));
+    }
+
+    /**
+     * Unit test for LRUKReplacementPolicy.chooseVictim()
+     */
+    @Test public void lruKPrefersPagesWithFewReferences() {
+        ReplacementPolicy policy = new LRUKReplacementPolicy(2);
+        policy.pageAdded(p0);
+        policy.pageAccessed(p0);
+        policy.pageAdded(p1);
+        policy.pageAccessed(p1);
+        policy.pageAdded(p2);
+
+        // p2 was referenced only once, so it goes first even though it is newest
+        assertEquals(p2, policy.chooseVictim(ANY));
+        policy.pageRemoved(p2);
+
+        // p0's second most recent reference is the oldest
+        assertEquals(p0, policy.chooseVictim(ANY));
+
+        // one more reference still leaves p0's second most recent one older than p1's
+        policy.pageAccessed(p0);
+        assertEquals(p0, policy.chooseVictim(ANY));
+        policy.pageAccessed(p0);
+        assertEquals(p1, policy.chooseVictim(ANY));
+        assertEquals(p0, policy.chooseVictim(allBut(p1)));
+    }
+
+    /**
+     * Unit test for ReplacementPolicy.pageAddedCold()
+     */
+    @Test public void coldPagesGoFirst() {
+        ReplacementPolicy[] policies = { new ClockReplacementPolicy(), new LRUKReplacementPolicy(2) };
+        for (ReplacementPolicy policy : policies) {
+            policy.pageAdded(p0);
+            policy.pageAccessed(p0);
+            policy.pageAddedCold(p1);
+            policy.pageAdded(p2);
+            assertEquals(p1, policy.chooseVictim(ANY));
+
+            // once a cold page is used again it is treated like any other
+            policy.pageAccessed(p1);
+            assertEquals(p2, policy.chooseVictim(allBut(p0)));
+        }
+    }
+
+    /**
+     * Unit test for PriorityReplacementPolicy: B+ tree upper levels are only
+     * evicted when nothing else can be, and the protected segment stays
+     * within its capacity.
+     */
+    @Test public void priorityProtectsUpperLevels() {
+        BTreePageId rootPtr = new BTreePageId(2, 0, BTreePageId.ROOT_PTR);
+        BTreePageId internal = new BTreePageId(2, 1, BTreePageId.INTERNAL);
+        BTreePageId leaf = new BTreePageId(2, 2, BTreePageId.LEAF);
+        PriorityReplacementPolicy policy = new PriorityReplacementPolicy(
+                new LRUKReplacementPolicy(2), new LRUKReplacementPolicy(2),
+                PriorityReplacementPolicy.BTREE_UPPER_LEVELS, 1);
+
+        policy.pageAdded(rootPtr);
+        policy.pageAdded(leaf);
+        assertEquals(leaf, policy.chooseVictim(ANY));
+        assertEquals(rootPtr, policy.chooseVictim(allBut(leaf)));
+
+        // the segment holds one page, so the root pointer moves down behind the leaf
+        policy.pageAdded(internal);
+        assertEquals(1, policy.numProtected());
+        assertEquals(leaf, policy.chooseVictim(ANY));
+        assertEquals(rootPtr, policy.chooseVictim(allBut(leaf)));
+
+        // using it again brings it back up and pushes the internal page down
+        policy.pageAccessed(rootPtr);
+        assertEquals(1, policy.numProtected());
+        assertEquals(internal, policy.chooseVictim(allBut(leaf)));
+
+        policy.pageRemoved(rootPtr);
+        assertEquals(0, policy.numProtected());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
@@ -0,0 +1,121 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SnapshotTest extends SimpleDbTestBase {
+    private BufferPool pool;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        pool = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        hf = SystemTestUtil.createRandomHeapFile(2, 10, null,
+                new ArrayList<ArrayList<Integer>>());
+    }
+
+    private int count(TransactionId tid) throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    private Tuple first(TransactionId tid) throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        Tuple t = it.next();
+        it.close();
+        return t;
+    }
+
+    /**
+     * A snapshot reads past a writer's exclusive lock, and keeps seeing the
+     * database as of when it began after the writer commits.
+     */
+    @Test(timeout = 10000) public void snapshotIgnoresLaterCommits() throws Exception {
+        TransactionId snapshot = new TransactionId();
+        pool.beginSnapshot(snapshot);
+
+        TransactionId writer = new TransactionId();
+        pool.insertTuple(writer, hf.getId(), Utility.getHeapTuple(99, 2));
+        assertEquals(11, count(writer));
+        assertEquals(10, count(snapshot));
+
+        pool.transactionComplete(writer);
+        assertEquals(10, count(snapshot));
+
+        TransactionId later = new TransactionId();
+        pool.beginSnapshot(later);
+        assertEquals(11, count(later));
+
+        pool.transactionComplete(snapshot);
+        pool.transactionComplete(later);
+        assertEquals(11, count(new TransactionId()));
+    }
+
+    /**
+     * A snapshot never sees a transaction that aborts, and cannot write.
+     */
+    @Test(timeout = 10000) public void snapshotIsReadOnly() throws Exception {
+        TransactionId snapshot = new TransactionId();
+        pool.beginSnapshot(snapshot);
+        TransactionId writer = new TransactionId();
+        pool.insertTuple(writer, hf.getId(), Utility.getHeapTuple(99, 2));
+        pool.transactionComplete(writer, false);
+        assertEquals(10, count(snapshot));
+
+        try {
+            pool.deleteTuple(snapshot, first(snapshot));
+            fail("expected DbException: snapshots are read-only");
+        } catch (DbException e) {
+            // expected
+        }
+        pool.transactionComplete(snapshot);
+    }
+
+    /**
+     * A page written back before its transaction commits is clean at commit;
+     * snapshots that begin afterwards must still see the committed change.
+     */
+    @Test(timeout = 10000) public void snapshotSeesStolenPageAfterCommit() throws Exception {
+        TransactionId writer = new TransactionId();
+        Tuple t = first(writer);
+        pool.deleteTuple(writer, t);
+        pool.writeBack(t.getRecordId().getPageId());
+        pool.transactionComplete(writer);
+
+        TransactionId snapshot = new TransactionId();
+        pool.beginSnapshot(snapshot);
+        assertEquals(9, count(snapshot));
+        pool.transactionComplete(snapshot);
+
+        // a second steal must log the committed page, not the one before it
+        TransactionId next = new TransactionId();
+        pool.deleteTuple(next, first(next));
+        pool.writeBack(t.getRecordId().getPageId());
+        pool.transactionComplete(next, false);
+        assertEquals(9, count(new TransactionId()));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotTest.class);
+    }
+}